@@ -1,541 +1,5759 @@
-import javax.swing.*;
-import javax.swing.border.EmptyBorder;
-import javax.swing.table.DefaultTableModel;
-import java.awt.BorderLayout;
-import java.awt.FlowLayout;
-import java.awt.Font;
-import java.awt.GridBagConstraints;
-import java.awt.GridBagLayout;
-import java.awt.Insets;
-import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
-import java.util.*;
-
-/**
- * Bank Account Simulator with Swing GUI
- * Single-file project. Save as BankAccountSimulatorGUI.java and run with:
- *   javac BankAccountSimulatorGUI.java
- *   java BankAccountSimulatorGUI
- *
- * Features included:
- * - Multiple accounts
- * - PIN-based authentication (SHA-256 hashed)
- * - Deposit / Withdraw / Transfer
- * - Transaction history (with timestamps)
- * - Persistence (save/load via Java serialization)
- * - Basic validation and error messages
- * - Simple admin: list accounts, freeze/unfreeze, export CSV
- */
-public class BankAccountSimulatorGUI extends JFrame {
-    private static final String DATA_FILE = "bank_data.ser";
-    private AccountManager manager;
-
-    // UI components
-    private JTextField createNameField;
-    private JPasswordField createPinField;
-    private JTextField createInitialField;
-    private JLabel createStatusLabel;
-
-    private JTextField loginAccField;
-    private JPasswordField loginPinField;
-    private JLabel loginStatusLabel;
-
-    private JLabel loggedInLabel;
-    private JButton logoutButton;
-
-    // Operations
-    private JTextField depositAmountField;
-    private JTextField withdrawAmountField;
-    private JTextField transferToField;
-    private JTextField transferAmountField;
-    private JTextArea historyArea;
-
-    private DefaultTableModel accountsTableModel;
-
-    private BankAccount currentAccount = null;
-
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                BankAccountSimulatorGUI gui = new BankAccountSimulatorGUI();
-                gui.setVisible(true);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
-    }
-
-    public BankAccountSimulatorGUI() {
-        setTitle("Bank Account Simulator");
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(900, 600);
-        setLocationRelativeTo(null);
-
-        // load data
-        try {
-            manager = AccountManager.loadFromFile(DATA_FILE);
-        } catch (Exception e) {
-            manager = new AccountManager();
-        }
-
-        buildUI();
-    }
-
-    private void buildUI() {
-        JPanel root = new JPanel(new BorderLayout(10, 10));
-        root.setBorder(new EmptyBorder(10, 10, 10, 10));
-        setContentPane(root);
-
-        JTabbedPane tabs = new JTabbedPane();
-        tabs.add("Home", buildHomePanel());
-        tabs.add("Create Account", buildCreatePanel());
-        tabs.add("Login / Operations", buildOperationsPanel());
-        tabs.add("Admin", buildAdminPanel());
-
-        root.add(tabs, BorderLayout.CENTER);
-
-        // bottom save/exit
-        JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-        JButton saveBtn = new JButton("Save");
-        saveBtn.addActionListener(e -> saveData());
-        JButton exitBtn = new JButton("Save & Exit");
-        exitBtn.addActionListener(e -> { saveData(); System.exit(0); });
-        bottom.add(saveBtn);
-        bottom.add(exitBtn);
-        root.add(bottom, BorderLayout.SOUTH);
-    }
-
-    private JPanel buildHomePanel() {
-        JPanel p = new JPanel(new BorderLayout(8,8));
-        JTextArea info = new JTextArea();
-        info.setEditable(false);
-        info.setText("Welcome to the Bank Account Simulator GUI.\n\n"
-                + "Features:\n"
-                + "- Create accounts (owner name, 4-digit PIN, initial deposit)\n"
-                + "- Login with account number + PIN\n"
-                + "- Deposit, Withdraw, Transfer, View Transaction History\n"
-                + "- Admin: list accounts, freeze/unfreeze, export CSV\n\n"
-                + "Notes: PINs are stored as SHA-256 hashes for demonstration only.\n"
-        );
-        info.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 13));
-        p.add(new JScrollPane(info), BorderLayout.CENTER);
-        return p;
-    }
-
-    private JPanel buildCreatePanel() {
-        JPanel p = new JPanel(new GridBagLayout());
-        GridBagConstraints c = new GridBagConstraints();
-        c.insets = new Insets(6,6,6,6);
-        c.gridx = 0; c.gridy = 0; c.anchor = GridBagConstraints.EAST;
-        p.add(new JLabel("Owner name:"), c);
-        c.gridx = 1; c.anchor = GridBagConstraints.WEST;
-        createNameField = new JTextField(20);
-        p.add(createNameField, c);
-
-        c.gridx = 0; c.gridy++ ; c.anchor = GridBagConstraints.EAST;
-        p.add(new JLabel("Set PIN (4-6 digits):"), c);
-        c.gridx = 1; c.anchor = GridBagConstraints.WEST;
-        createPinField = new JPasswordField(10);
-        p.add(createPinField, c);
-
-        c.gridx = 0; c.gridy++ ; c.anchor = GridBagConstraints.EAST;
-        p.add(new JLabel("Initial deposit:"), c);
-        c.gridx = 1; c.anchor = GridBagConstraints.WEST;
-        createInitialField = new JTextField(10);
-        createInitialField.setText("0");
-        p.add(createInitialField, c);
-
-        c.gridx = 1; c.gridy++;
-        JButton createBtn = new JButton("Create Account");
-        createBtn.addActionListener(e -> doCreateAccount());
-        p.add(createBtn, c);
-
-        c.gridy++;
-        createStatusLabel = new JLabel(" ");
-        p.add(createStatusLabel, c);
-
-        return p;
-    }
-
-    private JPanel buildOperationsPanel() {
-        JPanel p = new JPanel(new BorderLayout(10,10));
-
-        // login panel
-        JPanel login = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        login.add(new JLabel("Account #: "));
-        loginAccField = new JTextField(12);
-        login.add(loginAccField);
-        login.add(new JLabel("PIN: "));
-        loginPinField = new JPasswordField(8);
-        login.add(loginPinField);
-        JButton loginBtn = new JButton("Login");
-        loginBtn.addActionListener(e -> doLogin());
-        login.add(loginBtn);
-        loginStatusLabel = new JLabel(" ");
-        login.add(loginStatusLabel);
-
-        p.add(login, BorderLayout.NORTH);
-
-        // center split for operations and history
-        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
-        split.setResizeWeight(0.4);
-        split.setLeftComponent(buildOpsLeftPanel());
-        split.setRightComponent(buildHistoryPanel());
-
-        p.add(split, BorderLayout.CENTER);
-
-        // top status
-        JPanel top = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-        loggedInLabel = new JLabel("Not logged in");
-        logoutButton = new JButton("Logout");
-        logoutButton.setEnabled(false);
-        logoutButton.addActionListener(e -> doLogout());
-        top.add(loggedInLabel);
-        top.add(logoutButton);
-        p.add(top, BorderLayout.SOUTH);
-
-        return p;
-    }
-
-    private JPanel buildOpsLeftPanel() {
-        JPanel p = new JPanel();
-        p.setLayout(new BoxLayout(p, BoxLayout.Y_AXIS));
-        p.setBorder(new EmptyBorder(10,10,10,10));
-
-        // Balance
-        JPanel bal = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        bal.add(new JLabel("Balance: "));
-        JLabel balanceLabel = new JLabel("- -");
-        bal.add(balanceLabel);
-        p.add(bal);
-
-        // deposit
-        JPanel dep = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        dep.add(new JLabel("Deposit: "));
-        depositAmountField = new JTextField(8);
-        dep.add(depositAmountField);
-        JButton depBtn = new JButton("Deposit");
-        depBtn.addActionListener(e -> {
-            try {
-                ensureLoggedIn();
-                double amt = Double.parseDouble(depositAmountField.getText().trim());
-                currentAccount.deposit(amt);
-                balanceLabel.setText(String.format("%.2f", currentAccount.getBalance()));
-                appendHistoryText("Deposited " + amt);
-                saveData();
-            } catch (Exception ex) { showError(ex.getMessage()); }
-        });
-        dep.add(depBtn);
-        p.add(dep);
-
-        // withdraw
-        JPanel wth = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        wth.add(new JLabel("Withdraw: "));
-        withdrawAmountField = new JTextField(8);
-        wth.add(withdrawAmountField);
-        JButton wthBtn = new JButton("Withdraw");
-        wthBtn.addActionListener(e -> {
-            try {
-                ensureLoggedIn();
-                double amt = Double.parseDouble(withdrawAmountField.getText().trim());
-                currentAccount.withdraw(amt);
-                balanceLabel.setText(String.format("%.2f", currentAccount.getBalance()));
-                appendHistoryText("Withdrew " + amt);
-                saveData();
-            } catch (Exception ex) { showError(ex.getMessage()); }
-        });
-        wth.add(wthBtn);
-        p.add(wth);
-
-        // transfer
-        JPanel tr = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        tr.add(new JLabel("Transfer to (acct #): "));
-        transferToField = new JTextField(10);
-        tr.add(transferToField);
-        tr.add(new JLabel("Amount:"));
-        transferAmountField = new JTextField(8);
-        tr.add(transferAmountField);
-        JButton trBtn = new JButton("Transfer");
-        trBtn.addActionListener(e -> {
-            try {
-                ensureLoggedIn();
-                long to = Long.parseLong(transferToField.getText().trim());
-                double amt = Double.parseDouble(transferAmountField.getText().trim());
-                manager.transfer(currentAccount.getAccountNumber(), new String(loginPinField.getPassword()), to, amt);
-                // currentAccount might have been updated via manager.transfer; refresh label
-                balanceLabel.setText(String.format("%.2f", currentAccount.getBalance()));
-                appendHistoryText("Transferred " + amt + " to " + to);
-                saveData();
-            } catch (Exception ex) { showError(ex.getMessage()); }
-        });
-        tr.add(trBtn);
-        p.add(tr);
-
-        // refresh history button
-        JButton refreshHist = new JButton("Refresh History");
-        refreshHist.addActionListener(e -> showHistory());
-        p.add(refreshHist);
-
-        // placeholder glue
-        p.add(Box.createVerticalGlue());
-
-        return p;
-    }
-
-    private JPanel buildHistoryPanel() {
-        JPanel p = new JPanel(new BorderLayout());
-        p.setBorder(new EmptyBorder(10,10,10,10));
-        historyArea = new JTextArea();
-        historyArea.setEditable(false);
-        historyArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-        p.add(new JScrollPane(historyArea), BorderLayout.CENTER);
-        return p;
-    }
-
-    private JPanel buildAdminPanel() {
-        JPanel p = new JPanel(new BorderLayout(8,8));
-        accountsTableModel = new DefaultTableModel(new Object[]{"Account #","Owner","Balance","Frozen"}, 0) {
-            public boolean isCellEditable(int row, int col) { return false; }
-        };
-        JTable table = new JTable(accountsTableModel);
-        refreshAccountsTable();
-        p.add(new JScrollPane(table), BorderLayout.CENTER);
-
-        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        JButton refreshBtn = new JButton("Refresh");
-        refreshBtn.addActionListener(e -> refreshAccountsTable());
-        JButton freezeBtn = new JButton("Freeze/Unfreeze");
-        freezeBtn.addActionListener(e -> {
-            int r = table.getSelectedRow();
-            if (r == -1) { showError("Select an account first"); return; }
-            Object val = table.getValueAt(r, 0);
-            long acc = (val instanceof Number) ? ((Number) val).longValue() : Long.parseLong(val.toString());
-            BankAccount a = manager.getAccount(acc);
-            if (a == null) { showError("Account not found"); return; }
-            if (a.isFrozen()) a.unfreeze(); else a.freeze();
-            refreshAccountsTable();
-            saveData();
-        });
-        JButton exportBtn = new JButton("Export CSV");
-        exportBtn.addActionListener(e -> exportCSV());
-        buttons.add(refreshBtn); buttons.add(freezeBtn); buttons.add(exportBtn);
-        p.add(buttons, BorderLayout.SOUTH);
-        return p;
-    }
-
-    private void doCreateAccount() {
-        String name = createNameField.getText().trim();
-        String pin = new String(createPinField.getPassword()).trim();
-        String initS = createInitialField.getText().trim();
-        if (name.isEmpty()) { createStatusLabel.setText("Name required"); return; }
-        if (!pin.matches("\\d{4,6}")) { createStatusLabel.setText("PIN must be 4-6 digits"); return; }
-        double init = 0;
-        try { init = Double.parseDouble(initS); if (init < 0) throw new NumberFormatException(); } catch (Exception e) { createStatusLabel.setText("Invalid initial amount"); return; }
-        BankAccount a = manager.createAccount(name, pin, init);
-        createStatusLabel.setText("Created account: " + a.getAccountNumber());
-        createNameField.setText(""); createPinField.setText(""); createInitialField.setText("0");
-        refreshAccountsTable();
-        saveData();
-    }
-
-    private void doLogin() {
-        try {
-            long acc = Long.parseLong(loginAccField.getText().trim());
-            String pin = new String(loginPinField.getPassword());
-            BankAccount a = manager.getAccount(acc);
-            if (a == null) { loginStatusLabel.setText("Account not found"); return; }
-            if (!a.verifyPin(pin)) { loginStatusLabel.setText("Invalid PIN"); return; }
-            if (a.isFrozen()) { loginStatusLabel.setText("Account is frozen"); return; }
-            currentAccount = a;
-            loggedInLabel.setText("Logged in: " + a.getOwner() + " (" + a.getAccountNumber() + ")");
-            logoutButton.setEnabled(true);
-            loginStatusLabel.setText("Logged in");
-            showHistory();
-        } catch (NumberFormatException e) { loginStatusLabel.setText("Invalid account number"); }
-    }
-
-    private void doLogout() {
-        currentAccount = null;
-        loggedInLabel.setText("Not logged in");
-        logoutButton.setEnabled(false);
-        loginStatusLabel.setText(" ");
-        historyArea.setText("");
-    }
-
-    private void ensureLoggedIn() {
-        if (currentAccount == null) throw new IllegalStateException("Please login first");
-    }
-
-    private void showHistory() {
-        if (currentAccount == null) { historyArea.setText("Not logged in\n"); return; }
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Account %d - %s\n", currentAccount.getAccountNumber(), currentAccount.getOwner()));
-        sb.append(String.format("Balance: %.2f\n", currentAccount.getBalance()));
-        sb.append("Transactions:\n");
-        for (Transaction t : currentAccount.getTransactions()) sb.append("  " + t + "\n");
-        historyArea.setText(sb.toString());
-    }
-
-    private void appendHistoryText(String s) {
-        if (currentAccount == null) return;
-        historyArea.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " - " + s + "\n");
-    }
-
-    private void refreshAccountsTable() {
-        accountsTableModel.setRowCount(0);
-        for (BankAccount a : manager.listAllAccounts()) {
-            accountsTableModel.addRow(new Object[]{a.getAccountNumber(), a.getOwner(), a.getBalance(), a.isFrozen()});
-        }
-    }
-
-    private void saveData() {
-        try { manager.saveToFile(DATA_FILE); JOptionPane.showMessageDialog(this, "Data saved"); }
-        catch (Exception e) { JOptionPane.showMessageDialog(this, "Save failed: " + e.getMessage()); }
-    }
-
-    private void exportCSV() {
-        JFileChooser chooser = new JFileChooser();
-        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File f = chooser.getSelectedFile();
-            try (PrintWriter pw = new PrintWriter(f)) {
-                pw.println("Account,Owner,Balance,Frozen");
-                for (BankAccount a : manager.listAllAccounts()) {
-                    pw.printf("%d,%s,%.2f,%b\n", a.getAccountNumber(), a.getOwner(), a.getBalance(), a.isFrozen());
-                }
-                JOptionPane.showMessageDialog(this, "Exported to " + f.getAbsolutePath());
-            } catch (Exception e) { JOptionPane.showMessageDialog(this, "Export failed: " + e.getMessage()); }
-        }
-    }
-
-    private void showError(String msg) {
-        JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE);
-    }
-
-    // ----------------- Domain classes -----------------
-
-    static class Transaction implements Serializable {
-        enum Type {DEPOSIT, WITHDRAWAL, TRANSFER_IN, TRANSFER_OUT}
-        private final Date timestamp;
-        private final Type type;
-        private final double amount;
-        private final String note;
-
-        public Transaction(Type type, double amount, String note) {
-            this.timestamp = new Date();
-            this.type = type;
-            this.amount = amount;
-            this.note = note;
-        }
-
-        public String toString() {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            return String.format("[%s] %s %.2f (%s)", sdf.format(timestamp), type, amount, note);
-        }
-    }
-
-    static class BankAccount implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final String owner;
-        private final long accountNumber;
-        private final String pinHash;
-        private double balance;
-        private final java.util.List<Transaction> transactions = new ArrayList<>();
-        private boolean frozen = false;
-
-        public BankAccount(String owner, long accountNumber, String plainPin, double initial) {
-            this.owner = owner;
-            this.accountNumber = accountNumber;
-            this.pinHash = hash(plainPin);
-            this.balance = initial;
-            transactions.add(new Transaction(Transaction.Type.DEPOSIT, initial, "Initial deposit"));
-        }
-
-        private static String hash(String input) {
-            try {
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                byte[] b = md.digest(input.getBytes());
-                StringBuilder sb = new StringBuilder();
-                for (byte x : b) sb.append(String.format("%02x", x));
-                return sb.toString();
-            } catch (NoSuchAlgorithmException e) { throw new RuntimeException(e); }
-        }
-
-        public boolean verifyPin(String pin) { return hash(pin).equals(pinHash); }
-
-        public synchronized void deposit(double amount) {
-            if (frozen) throw new IllegalStateException("Account is frozen");
-            if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
-            balance += amount;
-            transactions.add(new Transaction(Transaction.Type.DEPOSIT, amount, "Deposit"));
-        }
-
-        public synchronized void withdraw(double amount) {
-            if (frozen) throw new IllegalStateException("Account is frozen");
-            if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
-            if (amount > balance) throw new IllegalArgumentException("Insufficient funds");
-            balance -= amount;
-            transactions.add(new Transaction(Transaction.Type.WITHDRAWAL, amount, "Withdrawal"));
-        }
-
-        public synchronized void transferOut(double amount, long toAccount) {
-            if (frozen) throw new IllegalStateException("Account is frozen");
-            if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
-            if (amount > balance) throw new IllegalArgumentException("Insufficient funds");
-            balance -= amount;
-            transactions.add(new Transaction(Transaction.Type.TRANSFER_OUT, amount, "Transfer to " + toAccount));
-        }
-
-        public synchronized void transferIn(double amount, long fromAccount) {
-            balance += amount;
-            transactions.add(new Transaction(Transaction.Type.TRANSFER_IN, amount, "Transfer from " + fromAccount));
-        }
-
-        public double getBalance() { return balance; }
-        public long getAccountNumber() { return accountNumber; }
-        public String getOwner() { return owner; }
-        public java.util.List<Transaction> getTransactions() { return Collections.unmodifiableList(transactions); }
-        public void freeze() { frozen = true; }
-        public void unfreeze() { frozen = false; }
-        public boolean isFrozen() { return frozen; }
-    }
-
-    static class AccountManager implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private final Map<Long, BankAccount> accounts = new HashMap<>();
-        private long nextAccount = 1000000000L;
-
-        public synchronized BankAccount createAccount(String owner, String pin, double initial) {
-            long acc = nextAccount++;
-            BankAccount a = new BankAccount(owner, acc, pin, initial);
-            accounts.put(acc, a);
-            return a;
-        }
-
-        public BankAccount getAccount(long acc) { return accounts.get(acc); }
-
-        public Collection<BankAccount> listAllAccounts() { return accounts.values(); }
-
-        public synchronized void transfer(long fromAcc, String fromPin, long toAcc, double amount) {
-            BankAccount from = accounts.get(fromAcc);
-            BankAccount to = accounts.get(toAcc);
-            if (from == null || to == null) throw new IllegalArgumentException("Account not found");
-            if (!from.verifyPin(fromPin)) throw new SecurityException("Invalid PIN");
-            from.transferOut(amount, toAcc);
-            to.transferIn(amount, fromAcc);
-        }
-
-        public synchronized void saveToFile(String filename) throws IOException {
-            try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filename))) {
-                out.writeObject(this);
-            }
-        }
-
-        public static AccountManager loadFromFile(String filename) throws IOException, ClassNotFoundException {
-            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(filename))) {
-                return (AccountManager) in.readObject();
-            }
-        }
-    }
-}
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.table.AbstractTableModel;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.GridLayout;
+import java.awt.Insets;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bank Account Simulator with Swing GUI
+ * Single-file project. Save as BankAccountSimulatorGUI.java and run with:
+ *   javac BankAccountSimulatorGUI.java
+ *   java BankAccountSimulatorGUI
+ * or, without the GUI, apply a file of commands in bulk:
+ *   java BankAccountSimulatorGUI --batch commands.txt [--lanes N] [--data bank_data.bin]
+ * and to measure the hot paths (JSON results, see {@link Benchmarks}):
+ *   java BankAccountSimulatorGUI --bench [--filter regex] [--out results.json]
+ * and to export accounts and the transaction ledger (see {@link Export}):
+ *   java BankAccountSimulatorGUI --export accounts.csv [--ledger] [--columnar] [--gzip] [--from yyyy-MM-dd] [--to yyyy-MM-dd]
+ * and to drive a reproducible load against the engine (see {@link Simulator}):
+ *   java BankAccountSimulatorGUI --simulate [--accounts N] [--ops N] [--threads N] [--zipf s] [--seed N] [--out report.json]
+ * and to serve the accounts to many clients over a loopback binary protocol (see {@link Wire}):
+ *   java BankAccountSimulatorGUI --serve [--port 7070] [--data bank_data.bin]
+ *   java BankAccountSimulatorGUI --stress [--port 7070] [--connections N] [--requests N] [--pipeline N]
+ *
+ * Features included:
+ * - Multiple accounts
+ * - PIN-based authentication (SHA-256 or salted PBKDF2 hashes, login sessions)
+ * - Deposit / Withdraw / Transfer
+ * - Transaction history (with timestamps), paged in from a memory-mapped history file
+ * - Persistence (binary snapshot + append-only write-ahead journal; old bank_data.ser files are migrated)
+ * - Basic validation and error messages
+ * - Simple admin: list accounts, freeze/unfreeze, export CSV
+ * - Latency and contention metrics (admin tab, JMX, bank_metrics.json; see {@link Metrics})
+ * - Headless batch processing of deposit/withdraw/transfer commands
+ * - Seeded load simulation with uniform or Zipf-skewed hot accounts
+ * - Loopback TCP server (pipelined binary protocol) with a client library and stress mode
+ */
+public class BankAccountSimulatorGUI extends JFrame {
+    private static final String DATA_FILE = "bank_data.bin";
+    private static final String LEGACY_DATA_FILE = "bank_data.ser"; // Java-serialized data of earlier versions; migrated on first start
+    private static final int SEARCH_LIMIT = 10_000; // most rows an admin search lists
+    private AccountManager manager;
+    private SnapshotScheduler persistence;
+
+    // UI components
+    private JTextField createNameField;
+    private JPasswordField createPinField;
+    private JTextField createInitialField;
+    private JLabel createStatusLabel;
+
+    private JTextField loginAccField;
+    private JPasswordField loginPinField;
+    private JLabel loginStatusLabel;
+
+    private JLabel loggedInLabel;
+    private JButton logoutButton;
+
+    // Operations
+    private JTextField depositAmountField;
+    private JTextField withdrawAmountField;
+    private JTextField transferToField;
+    private JTextField transferAmountField;
+    private JLabel historyHeader;
+    private JList<String> historyList;
+    private final HistoryListModel historyModel = new HistoryListModel();
+
+    private AccountTableModel accountsTableModel;
+
+    private JLabel statusLabel; // background save progress and failures
+
+    private BankAccount currentAccount = null;
+    // runs account operations in click order; they wait for the journal fsync, which must not hold up the EDT
+    private final ExecutorService operations = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "bank-operations");
+        t.setDaemon(true);
+        return t;
+    });
+    private String session; // from manager.login; spares re-checking the PIN on every transfer
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--batch")) { BankService.runBatch(args); return; }
+        if (args.length > 0 && args[0].equals("--bench")) { Benchmarks.run(args); return; }
+        if (args.length > 0 && args[0].equals("--export")) { Export.run(args); return; }
+        if (args.length > 0 && args[0].equals("--simulate")) { Simulator.run(args); return; }
+        if (args.length > 0 && args[0].equals("--serve")) { BankServer.run(args); return; }
+        if (args.length > 0 && args[0].equals("--stress")) { BankClient.stress(args); return; }
+        if (args.length > 0 && args[0].equals("--audit")) { Audit.run(args); return; }
+        SwingUtilities.invokeLater(() -> {
+            try {
+                BankAccountSimulatorGUI gui = new BankAccountSimulatorGUI();
+                gui.setVisible(true);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    public BankAccountSimulatorGUI() {
+        setTitle("Bank Account Simulator");
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override public void windowClosing(WindowEvent e) { saveAndExit(); }
+        });
+        setSize(900, 600);
+        setLocationRelativeTo(null);
+
+        // load data
+        try {
+            manager = AccountManager.open(DATA_FILE, LEGACY_DATA_FILE);
+        } catch (Exception e) {
+            manager = new AccountManager();
+        }
+        Metrics.watch(manager);
+
+        buildUI();
+        persistence = startPersistence();
+    }
+
+    private SnapshotScheduler startPersistence() {
+        return new SnapshotScheduler(manager, DATA_FILE, SnapshotScheduler.INTERVAL_SECONDS, SnapshotScheduler.THRESHOLD,
+                msg -> SwingUtilities.invokeLater(() -> statusLabel.setText(msg)));
+    }
+
+    private void buildUI() {
+        JPanel root = new JPanel(new BorderLayout(10, 10));
+        root.setBorder(new EmptyBorder(10, 10, 10, 10));
+        setContentPane(root);
+
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.add("Home", buildHomePanel());
+        tabs.add("Create Account", buildCreatePanel());
+        tabs.add("Login / Operations", buildOperationsPanel());
+        tabs.add("Admin", buildAdminPanel());
+
+        root.add(tabs, BorderLayout.CENTER);
+
+        // bottom status bar and save/exit
+        JPanel bottom = new JPanel(new BorderLayout());
+        statusLabel = new JLabel("Ready");
+        bottom.add(statusLabel, BorderLayout.WEST);
+        JPanel bottomButtons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        JButton saveBtn = new JButton("Save");
+        saveBtn.addActionListener(e -> saveSnapshot());
+        JButton exitBtn = new JButton("Save & Exit");
+        exitBtn.addActionListener(e -> saveAndExit());
+        bottomButtons.add(saveBtn);
+        bottomButtons.add(exitBtn);
+        bottom.add(bottomButtons, BorderLayout.EAST);
+        root.add(bottom, BorderLayout.SOUTH);
+    }
+
+    private JPanel buildHomePanel() {
+        JPanel p = new JPanel(new BorderLayout(8,8));
+        JTextArea info = new JTextArea();
+        info.setEditable(false);
+        info.setText("Welcome to the Bank Account Simulator GUI.\n\n"
+                + "Features:\n"
+                + "- Create accounts (owner name, 4-digit PIN, initial deposit)\n"
+                + "- Login with account number + PIN\n"
+                + "- Deposit, Withdraw, Transfer, View Transaction History\n"
+                + "- Admin: list accounts, freeze/unfreeze, export CSV\n\n"
+                + "Notes: PINs are stored as SHA-256 hashes for demonstration only.\n"
+        );
+        info.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 13));
+        p.add(new JScrollPane(info), BorderLayout.CENTER);
+        return p;
+    }
+
+    private JPanel buildCreatePanel() {
+        JPanel p = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.insets = new Insets(6,6,6,6);
+        c.gridx = 0; c.gridy = 0; c.anchor = GridBagConstraints.EAST;
+        p.add(new JLabel("Owner name:"), c);
+        c.gridx = 1; c.anchor = GridBagConstraints.WEST;
+        createNameField = new JTextField(20);
+        p.add(createNameField, c);
+
+        c.gridx = 0; c.gridy++ ; c.anchor = GridBagConstraints.EAST;
+        p.add(new JLabel("Set PIN (4-6 digits):"), c);
+        c.gridx = 1; c.anchor = GridBagConstraints.WEST;
+        createPinField = new JPasswordField(10);
+        p.add(createPinField, c);
+
+        c.gridx = 0; c.gridy++ ; c.anchor = GridBagConstraints.EAST;
+        p.add(new JLabel("Initial deposit:"), c);
+        c.gridx = 1; c.anchor = GridBagConstraints.WEST;
+        createInitialField = new JTextField(10);
+        createInitialField.setText("0");
+        p.add(createInitialField, c);
+
+        c.gridx = 1; c.gridy++;
+        JButton createBtn = new JButton("Create Account");
+        createBtn.addActionListener(e -> doCreateAccount());
+        p.add(createBtn, c);
+
+        c.gridy++;
+        createStatusLabel = new JLabel(" ");
+        p.add(createStatusLabel, c);
+
+        return p;
+    }
+
+    private JPanel buildOperationsPanel() {
+        JPanel p = new JPanel(new BorderLayout(10,10));
+
+        // login panel
+        JPanel login = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        login.add(new JLabel("Account #: "));
+        loginAccField = new JTextField(12);
+        login.add(loginAccField);
+        login.add(new JLabel("PIN: "));
+        loginPinField = new JPasswordField(8);
+        login.add(loginPinField);
+        JButton loginBtn = new JButton("Login");
+        loginBtn.addActionListener(e -> doLogin());
+        login.add(loginBtn);
+        loginStatusLabel = new JLabel(" ");
+        login.add(loginStatusLabel);
+
+        p.add(login, BorderLayout.NORTH);
+
+        // center split for operations and history
+        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
+        split.setResizeWeight(0.4);
+        split.setLeftComponent(buildOpsLeftPanel());
+        split.setRightComponent(buildHistoryPanel());
+
+        p.add(split, BorderLayout.CENTER);
+
+        // top status
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        loggedInLabel = new JLabel("Not logged in");
+        logoutButton = new JButton("Logout");
+        logoutButton.setEnabled(false);
+        logoutButton.addActionListener(e -> doLogout());
+        top.add(loggedInLabel);
+        top.add(logoutButton);
+        p.add(top, BorderLayout.SOUTH);
+
+        return p;
+    }
+
+    private JPanel buildOpsLeftPanel() {
+        JPanel p = new JPanel();
+        p.setLayout(new BoxLayout(p, BoxLayout.Y_AXIS));
+        p.setBorder(new EmptyBorder(10,10,10,10));
+
+        // Balance
+        JPanel bal = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        bal.add(new JLabel("Balance: "));
+        JLabel balanceLabel = new JLabel("- -");
+        bal.add(balanceLabel);
+        p.add(bal);
+
+        // deposit
+        JPanel dep = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        dep.add(new JLabel("Deposit: "));
+        depositAmountField = new JTextField(8);
+        dep.add(depositAmountField);
+        JButton depBtn = new JButton("Deposit");
+        depBtn.addActionListener(e -> {
+            try {
+                ensureLoggedIn();
+                long acc = currentAccount.getAccountNumber(), amt = Money.parse(depositAmountField.getText());
+                runOperation(() -> manager.deposit(acc, amt), () -> accountUpdated(balanceLabel));
+            } catch (Exception ex) { showError(ex.getMessage()); }
+        });
+        dep.add(depBtn);
+        p.add(dep);
+
+        // withdraw
+        JPanel wth = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        wth.add(new JLabel("Withdraw: "));
+        withdrawAmountField = new JTextField(8);
+        wth.add(withdrawAmountField);
+        JButton wthBtn = new JButton("Withdraw");
+        wthBtn.addActionListener(e -> {
+            try {
+                ensureLoggedIn();
+                long acc = currentAccount.getAccountNumber(), amt = Money.parse(withdrawAmountField.getText());
+                runOperation(() -> manager.withdraw(acc, amt), () -> accountUpdated(balanceLabel));
+            } catch (Exception ex) { showError(ex.getMessage()); }
+        });
+        wth.add(wthBtn);
+        p.add(wth);
+
+        // transfer
+        JPanel tr = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        tr.add(new JLabel("Transfer to (acct #): "));
+        transferToField = new JTextField(10);
+        tr.add(transferToField);
+        tr.add(new JLabel("Amount:"));
+        transferAmountField = new JTextField(8);
+        tr.add(transferAmountField);
+        JButton trBtn = new JButton("Transfer");
+        trBtn.addActionListener(e -> {
+            try {
+                ensureLoggedIn();
+                long to = Long.parseLong(transferToField.getText().trim());
+                long amt = Money.parse(transferAmountField.getText());
+                String s = session;
+                runOperation(() -> manager.transfer(s, to, amt), () -> accountUpdated(balanceLabel));
+            } catch (Exception ex) { showError(ex.getMessage()); }
+        });
+        tr.add(trBtn);
+        p.add(tr);
+
+        // refresh history button
+        JButton refreshHist = new JButton("Refresh History");
+        refreshHist.addActionListener(e -> updateHistory());
+        p.add(refreshHist);
+
+        // placeholder glue
+        p.add(Box.createVerticalGlue());
+
+        return p;
+    }
+
+    private JPanel buildHistoryPanel() {
+        JPanel p = new JPanel(new BorderLayout());
+        p.setBorder(new EmptyBorder(10,10,10,10));
+        historyHeader = new JLabel(" ");
+        historyHeader.setBorder(new EmptyBorder(0, 0, 6, 0));
+        p.add(historyHeader, BorderLayout.NORTH);
+        historyList = new JList<>(historyModel);
+        historyList.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        // fixed cell sizes, so the list only formats the rows it paints instead of measuring them all
+        historyList.setPrototypeCellValue("[2000-01-01 00:00:00] TRANSFER_OUT 1000000000.00 (Transfer to 1000000000)");
+        p.add(new JScrollPane(historyList), BorderLayout.CENTER);
+        return p;
+    }
+
+    private JPanel buildAdminPanel() {
+        JPanel p = new JPanel(new BorderLayout(8,8));
+        JLabel tableStatus = new JLabel(" ");
+        accountsTableModel = new AccountTableModel(manager, tableStatus::setText);
+        JTable table = new JTable(accountsTableModel);
+        // sorting is done by the model over the whole index, not by a JTable row sorter
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                int col = table.columnAtPoint(e.getPoint());
+                if (col >= 0) accountsTableModel.sortBy(table.convertColumnIndexToModel(col));
+            }
+        });
+        JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(table), buildMetricsPanel());
+        split.setResizeWeight(0.65);
+        p.add(split, BorderLayout.CENTER);
+
+        // filters
+        JPanel filters = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JTextField ownerFilter = new JTextField(12);
+        JTextField minBalanceFilter = new JTextField(8);
+        JComboBox<String> statusFilter = new JComboBox<>(new String[]{"All", "Active", "Frozen"});
+        JButton applyBtn = new JButton("Apply");
+        java.awt.event.ActionListener apply = e -> {
+            long min;
+            try { min = minBalanceFilter.getText().isBlank() ? Long.MIN_VALUE : Money.parse(minBalanceFilter.getText()); }
+            catch (Exception ex) { showError("Invalid minimum balance"); return; }
+            int status = statusFilter.getSelectedIndex();
+            accountsTableModel.setFilter(new AccountIndex.Filter(ownerFilter.getText().trim(), min, status == 0 ? null : status == 2));
+        };
+        ownerFilter.addActionListener(apply);
+        minBalanceFilter.addActionListener(apply);
+        applyBtn.addActionListener(apply);
+        filters.add(new JLabel("Owner:")); filters.add(ownerFilter);
+        filters.add(new JLabel("Min balance:")); filters.add(minBalanceFilter);
+        filters.add(new JLabel("Status:")); filters.add(statusFilter);
+        filters.add(applyBtn); filters.add(tableStatus);
+        // indexed searches: owner and balance lookups that do not scan the bank
+        JPanel search = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JComboBox<String> searchKind = new JComboBox<>(new String[]{"Owner is", "Owner starts with", "Top balances", "Balance between"});
+        JTextField searchField = new JTextField(14);
+        searchField.setToolTipText("Owner name, number of accounts (top balances) or min-max (balance between)");
+        JButton searchBtn = new JButton("Search");
+        java.awt.event.ActionListener runSearch = e -> {
+            String q = searchField.getText().trim();
+            long start = System.nanoTime();
+            long[] found;
+            String what;
+            try {
+                switch (searchKind.getSelectedIndex()) {
+                    case 0: found = manager.findByOwner(q, SEARCH_LIMIT); what = "owner is '" + q + "'"; break;
+                    case 1: found = manager.findByOwnerPrefix(q, SEARCH_LIMIT); what = "owner starts with '" + q + "'"; break;
+                    case 2:
+                        int n = q.isEmpty() ? 100 : Integer.parseInt(q);
+                        found = manager.topBalances(Math.min(n, SEARCH_LIMIT));
+                        what = "top " + n + " balances";
+                        break;
+                    default:
+                        String[] range = q.split("-", 2);
+                        if (range.length != 2) { showError("Enter a range as min-max, e.g. 100-500"); return; }
+                        long min = Money.parse(range[0]), max = Money.parse(range[1]);
+                        found = manager.findByBalance(min, max, SEARCH_LIMIT);
+                        what = "balance between " + Money.format(min) + " and " + Money.format(max);
+                }
+            } catch (NumberFormatException ex) { showError("Invalid search: " + ex.getMessage()); return; }
+            long micros = (System.nanoTime() - start) / 1000;
+            accountsTableModel.showResults(what + (found.length == SEARCH_LIMIT ? " (first " + SEARCH_LIMIT + ")" : "") + " in " + micros + " us", found);
+        };
+        searchField.addActionListener(runSearch);
+        searchBtn.addActionListener(runSearch);
+        search.add(new JLabel("Search:")); search.add(searchKind); search.add(searchField); search.add(searchBtn);
+        JPanel north = new JPanel(new GridLayout(2, 1));
+        north.add(filters);
+        north.add(search);
+        p.add(north, BorderLayout.NORTH);
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JButton refreshBtn = new JButton("Refresh");
+        refreshBtn.addActionListener(e -> accountsTableModel.reload());
+        JButton freezeBtn = new JButton("Freeze/Unfreeze");
+        freezeBtn.addActionListener(e -> {
+            int r = table.getSelectedRow();
+            if (r == -1) { showError("Select an account first"); return; }
+            Object val = table.getValueAt(r, 0);
+            long acc = (val instanceof Number) ? ((Number) val).longValue() : Long.parseLong(val.toString());
+            BankAccount a = manager.getAccount(acc);
+            if (a == null) { showError("Account not found"); return; }
+            AccountIndex.Row before = new AccountIndex.Row(a);
+            runOperation(() -> manager.setFrozen(acc, !before.frozen), () -> {
+                accountsTableModel.accountChanged(acc, before);
+                saveData();
+            });
+        });
+        JButton exportBtn = new JButton("Export...");
+        exportBtn.addActionListener(e -> exportData());
+        JButton auditBtn = new JButton("Audit");
+        auditBtn.addActionListener(e -> auditBank());
+        buttons.add(refreshBtn); buttons.add(freezeBtn); buttons.add(exportBtn); buttons.add(auditBtn);
+        p.add(buttons, BorderLayout.SOUTH);
+        return p;
+    }
+
+    // live latency percentiles and counters from Metrics, refreshed every second while visible
+    private JPanel buildMetricsPanel() {
+        JPanel p = new JPanel(new BorderLayout(4, 4));
+        p.setBorder(BorderFactory.createTitledBorder("Metrics (latency in microseconds)"));
+        MetricsTableModel model = new MetricsTableModel();
+        p.add(new JScrollPane(new JTable(model)), BorderLayout.CENTER);
+        JLabel counters = new JLabel(" ");
+        JButton resetBtn = new JButton("Reset");
+        resetBtn.addActionListener(e -> { Metrics.reset(); model.refresh(); });
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.add(counters, BorderLayout.CENTER);
+        bottom.add(resetBtn, BorderLayout.EAST);
+        p.add(bottom, BorderLayout.SOUTH);
+        new javax.swing.Timer(1000, e -> {
+            if (!p.isShowing()) return;
+            model.refresh();
+            Metrics.BankMetricsMXBean b = Metrics.BANK;
+            counters.setText(String.format("Contended waits: %,d monitor, %,d checkpoint    Journal: %,d KB, %,d fsyncs"
+                    + "    Last snapshot: %,d KB    Heap/account: %,d B", b.getContendedMonitors(), b.getContendedCheckpoints(),
+                    b.getJournalBytes() / 1024, b.getJournalForces(), b.getLastSnapshotBytes() / 1024, b.getHeapPerAccountBytes()));
+        }).start();
+        return p;
+    }
+
+    private void doCreateAccount() {
+        String name = createNameField.getText().trim();
+        String pin = new String(createPinField.getPassword()).trim();
+        String initS = createInitialField.getText().trim();
+        if (name.isEmpty()) { createStatusLabel.setText("Name required"); return; }
+        if (!pin.matches("\\d{4,6}")) { createStatusLabel.setText("PIN must be 4-6 digits"); return; }
+        long init;
+        try { init = Money.parse(initS); } catch (Exception e) { createStatusLabel.setText("Invalid initial amount"); return; }
+        createStatusLabel.setText("Creating...");
+        CompletableFuture.supplyAsync(() -> manager.createAccount(name, pin, init), operations).whenComplete((a, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null) { createStatusLabel.setText("Create failed: " + causeOf(err).getMessage()); return; }
+            createStatusLabel.setText("Created account: " + a.getAccountNumber());
+            createNameField.setText(""); createPinField.setText(""); createInitialField.setText("0");
+            accountsTableModel.accountChanged(a.getAccountNumber(), null);
+            saveData();
+        }));
+    }
+
+    /**
+     * Runs {@code op} on the operations thread, since it syncs the journal, then {@code done} on the
+     * EDT; a failure is shown instead.
+     */
+    private void runOperation(Runnable op, Runnable done) {
+        CompletableFuture.runAsync(op, operations).whenComplete((v, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null) showError(causeOf(err).getMessage());
+            else done.run();
+        }));
+    }
+
+    private static Throwable causeOf(Throwable err) { return err instanceof CompletionException && err.getCause() != null ? err.getCause() : err; }
+
+    // after an operation on the logged-in account
+    private void accountUpdated(JLabel balanceLabel) {
+        if (currentAccount != null) balanceLabel.setText(Money.format(currentAccount.getBalance()));
+        updateHistory();
+        saveData();
+    }
+
+    private void doLogin() {
+        try {
+            long acc = Long.parseLong(loginAccField.getText().trim());
+            String pin = new String(loginPinField.getPassword());
+            String token;
+            try { token = manager.login(acc, pin); }
+            catch (RuntimeException e) { loginStatusLabel.setText(e.getMessage()); return; }
+            manager.logout(session);
+            session = token;
+            BankAccount a = manager.getAccount(acc);
+            currentAccount = a;
+            loggedInLabel.setText("Logged in: " + a.getOwner() + " (" + a.getAccountNumber() + ")");
+            logoutButton.setEnabled(true);
+            loginStatusLabel.setText("Logged in");
+            showHistory();
+        } catch (NumberFormatException e) { loginStatusLabel.setText("Invalid account number"); }
+    }
+
+    private void doLogout() {
+        manager.logout(session);
+        session = null;
+        currentAccount = null;
+        loggedInLabel.setText("Not logged in");
+        logoutButton.setEnabled(false);
+        loginStatusLabel.setText(" ");
+        showHistory();
+    }
+
+    private void ensureLoggedIn() {
+        if (currentAccount == null) throw new IllegalStateException("Please login first");
+    }
+
+    private void showHistory() {
+        historyModel.show(currentAccount);
+        updateHistory();
+    }
+
+    // picks up entries booked since the list was last updated and keeps the newest in view
+    private void updateHistory() {
+        if (currentAccount == null) { historyHeader.setText("Not logged in"); return; }
+        historyHeader.setText("Account " + currentAccount.getAccountNumber() + " - " + currentAccount.getOwner()
+                + "    Balance: " + Money.format(currentAccount.getBalance()));
+        historyModel.refresh();
+        if (historyModel.getSize() > 0) historyList.ensureIndexIsVisible(historyModel.getSize() - 1);
+    }
+
+    // operations are already durable in the journal; snapshots are taken in the background
+    private void saveData() { persistence.changed(); }
+
+    private void saveSnapshot() { persistence.saveNow(); }
+
+    // the final snapshot runs off the EDT, after any operation still queued; exit once it is on disk
+    private void saveAndExit() {
+        statusLabel.setText("Saving before exit...");
+        CompletableFuture.runAsync(() -> {}, operations).thenCompose(v -> persistence.shutdown()).whenComplete((v, err) -> SwingUtilities.invokeLater(() -> {
+            if (Metrics.DUMP_SECONDS > 0) Metrics.dumpQuietly();
+            if (err == null) System.exit(0);
+            int r = JOptionPane.showConfirmDialog(this, "Final save failed: " + causeOf(err).getMessage()
+                    + "\nAll operations are in the journal and will be replayed on the next start.\nExit anyway?",
+                    "Save failed", JOptionPane.YES_NO_OPTION);
+            if (r == JOptionPane.YES_OPTION) System.exit(0);
+            persistence = startPersistence();
+        }));
+    }
+
+    // accounts (and optionally the ledger) are written on a background thread; progress goes to the status bar
+    private void exportData() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        JCheckBox ledger = new JCheckBox("Include transaction ledger", true);
+        JComboBox<String> format = new JComboBox<>(new String[]{"CSV", "Columnar (binary)"});
+        JCheckBox gzip = new JCheckBox("Compress (gzip)");
+        JTextField from = new JTextField(10), to = new JTextField(10);
+        JPanel opts = new JPanel(new GridLayout(0, 2, 6, 6));
+        opts.add(ledger); opts.add(new JLabel());
+        opts.add(new JLabel("Ledger format:")); opts.add(format);
+        opts.add(gzip); opts.add(new JLabel());
+        opts.add(new JLabel("From (yyyy-MM-dd):")); opts.add(from);
+        opts.add(new JLabel("To (yyyy-MM-dd):")); opts.add(to);
+        if (JOptionPane.showConfirmDialog(this, opts, "Export", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+
+        Export.Options o = new Export.Options();
+        o.format = format.getSelectedIndex() == 1 ? Export.Format.COLUMNAR : Export.Format.CSV;
+        o.gzip = gzip.isSelected();
+        try {
+            if (!from.getText().isBlank()) o.from = Export.startOfDay(from.getText());
+            if (!to.getText().isBlank()) o.to = Export.endOfDay(to.getText());
+        } catch (Exception ex) { showError("Dates must be yyyy-MM-dd"); return; }
+        Path accountsFile = Export.accountsPath(chooser.getSelectedFile().toPath(), o);
+        boolean withLedger = ledger.isSelected();
+        statusLabel.setText("Exporting...");
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                String msg = "Exported " + Export.accounts(manager, accountsFile, o);
+                if (withLedger) msg += "; ledger " + Export.ledger(manager, Export.ledgerPath(accountsFile, o), o);
+                return msg;
+            } catch (IOException ex) { throw new UncheckedIOException(ex); }
+        }, r -> new Thread(r, "bank-export").start()).whenComplete((msg, err) -> SwingUtilities.invokeLater(() ->
+                statusLabel.setText(err == null ? msg : "Export failed: " + (err.getCause() != null ? err.getCause() : err).getMessage())));
+    }
+
+    // reconciles the bank on a background thread and shows the report when done
+    private void auditBank() {
+        statusLabel.setText("Auditing...");
+        CompletableFuture.supplyAsync(manager::audit, r -> new Thread(r, "bank-audit").start()).whenComplete((report, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null) { statusLabel.setText("Audit failed: " + (err.getCause() != null ? err.getCause() : err).getMessage()); return; }
+            statusLabel.setText(report.clean() ? "Audit passed" : "Audit found problems");
+            JTextArea text = new JTextArea(report.toString(), 12, 80);
+            text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            text.setEditable(false);
+            JOptionPane.showMessageDialog(this, new JScrollPane(text), "Audit", report.clean() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+        }));
+    }
+
+    private void showError(String msg) {
+        JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * One account's history for a JList, oldest first. Rows are formatted a page at a time, only
+     * when the list paints them, and a few pages are kept; {@link #refresh} announces just the
+     * entries booked since the last call. Used on the EDT only.
+     */
+    static final class HistoryListModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        private static final int PAGE = 256, MAX_PAGES = 16;
+        private BankAccount account;
+        private int size;
+        private final LinkedHashMap<Integer, String[]> pages = new LinkedHashMap<Integer, String[]>(MAX_PAGES, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) { return size() > MAX_PAGES; }
+        };
+
+        /** Switches to another account (or none). */
+        void show(BankAccount a) {
+            int old = size;
+            account = a;
+            size = 0;
+            pages.clear();
+            if (old > 0) fireIntervalRemoved(this, 0, old - 1);
+            refresh();
+        }
+
+        /** Appends the entries booked since the last call; returns whether there were any. */
+        boolean refresh() {
+            int n = account == null ? 0 : account.log.size();
+            if (n <= size) return false;
+            int old = size;
+            size = n;
+            pages.remove(old / PAGE); // the last page was partial
+            fireIntervalAdded(this, old, n - 1);
+            return true;
+        }
+
+        @Override public int getSize() { return size; }
+
+        @Override
+        public String getElementAt(int i) {
+            Objects.checkIndex(i, size);
+            return pages.computeIfAbsent(i / PAGE, this::render)[i % PAGE];
+        }
+
+        private String[] render(int page) {
+            int from = page * PAGE;
+            String[] rows = new String[Math.min(size - from, PAGE)];
+            for (int k = 0; k < rows.length; k++) rows[k] = account.log.get(from + k).toString();
+            return rows;
+        }
+    }
+
+    /** One row per {@link Metrics} histogram, as of the last {@link #refresh}. */
+    static final class MetricsTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        private static final String[] COLUMNS = {"Operation", "Count", "Mean", "p50", "p99", "p99.9", "Max"};
+        private Metrics.Snapshot[] rows = new Metrics.Snapshot[0];
+
+        void refresh() {
+            Metrics.Snapshot[] s = new Metrics.Snapshot[Metrics.ALL.length];
+            for (int i = 0; i < s.length; i++) s[i] = Metrics.ALL[i].snapshot();
+            rows = s;
+            fireTableDataChanged();
+        }
+
+        @Override public int getRowCount() { return rows.length; }
+        @Override public int getColumnCount() { return COLUMNS.length; }
+        @Override public String getColumnName(int c) { return COLUMNS[c]; }
+
+        @Override
+        public Object getValueAt(int r, int c) {
+            Metrics.Snapshot s = rows[r];
+            switch (c) {
+                case 0: return s.name;
+                case 1: return String.format("%,d", s.count);
+                case 2: return micros(Math.round(s.mean()));
+                case 3: return micros(s.percentile(0.50));
+                case 4: return micros(s.percentile(0.99));
+                case 5: return micros(s.percentile(0.999));
+                default: return micros(s.max);
+            }
+        }
+
+        private static String micros(long nanos) { return String.format("%,.1f", nanos / 1000.0); }
+    }
+
+    /**
+     * Admin table over an {@link AccountIndex}: JTable only asks for the rows it paints, and each
+     * cell is read from the live account. Sorting and filtering rebuild the index off the EDT;
+     * a created or changed account moves just its own row. Used on the EDT only.
+     */
+    static final class AccountTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        private static final String[] COLUMNS = {"Account #", "Owner", "Balance", "Frozen"};
+        private static final AccountIndex.Key[] KEYS = AccountIndex.Key.values(); // same order as the columns
+
+        private final AccountManager manager;
+        private final java.util.function.Consumer<String> status;
+        private AccountIndex index;
+        private AccountIndex.Key key = AccountIndex.Key.NUMBER;
+        private boolean descending;
+        private AccountIndex.Filter filter = AccountIndex.Filter.ALL;
+        private String search;                                         // shown instead of the sort order while results are listed
+        private int generation;                                        // drops results of superseded rebuilds
+        private boolean rebuilding;                                    // a reload is running; changes are recorded for it
+        private final Map<Long, AccountIndex.Row> changedDuringRebuild = new LinkedHashMap<>(); // replayed onto the new index
+
+        AccountTableModel(AccountManager manager, java.util.function.Consumer<String> status) {
+            this.manager = manager;
+            this.status = status;
+            index = new AccountIndex(manager, key, descending, filter);
+            reload();
+        }
+
+        @Override public int getRowCount() { return index.size(); }
+        @Override public int getColumnCount() { return COLUMNS.length; }
+        @Override public String getColumnName(int col) { return COLUMNS[col]; }
+        @Override public Class<?> getColumnClass(int col) { return col == 0 ? Long.class : col == 3 ? Boolean.class : String.class; }
+
+        @Override
+        public Object getValueAt(int row, int col) {
+            BankAccount a = manager.getAccount(index.accountAt(row));
+            switch (col) {
+                case 0: return a.getAccountNumber();
+                case 1: return a.getOwner();
+                case 2: return Money.format(a.getBalance());
+                default: return a.isFrozen();
+            }
+        }
+
+        /** Sorts by the column, or flips the direction if it is already the sort column. */
+        void sortBy(int col) {
+            descending = KEYS[col] == key && !descending;
+            key = KEYS[col];
+            reload();
+        }
+
+        void setFilter(AccountIndex.Filter filter) {
+            this.filter = filter;
+            reload();
+        }
+
+        /** Rebuilds the index in the background and swaps it in when done. */
+        void reload() {
+            int gen = ++generation;
+            changedDuringRebuild.clear();
+            rebuilding = true;
+            AccountIndex.Key k = key;
+            boolean desc = descending;
+            AccountIndex.Filter f = filter;
+            status.accept("Loading...");
+            CompletableFuture.supplyAsync(() -> AccountIndex.build(manager, k, desc, f)).whenComplete((built, err) -> SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                rebuilding = false;
+                if (err != null) {
+                    changedDuringRebuild.clear();
+                    status.accept("Refresh failed: " + err.getMessage());
+                    return;
+                }
+                changedDuringRebuild.forEach(built::refresh);
+                changedDuringRebuild.clear();
+                index = built;
+                search = null;
+                fireTableDataChanged();
+                report();
+            }));
+        }
+
+        /** Lists search results in their own order until the next sort, filter or refresh. */
+        void showResults(String description, long[] found) {
+            generation++; // a rebuild still running would replace the results
+            rebuilding = false;
+            changedDuringRebuild.clear();
+            index = AccountIndex.of(manager, found);
+            search = description;
+            fireTableDataChanged();
+            report();
+        }
+
+        /**
+         * Re-positions one account after it was created or changed, firing only that row's events;
+         * {@code before} holds its values from before the change, null for a new account.
+         */
+        void accountChanged(long acc, AccountIndex.Row before) {
+            if (rebuilding) changedDuringRebuild.put(acc, before);
+            int[] moved = index.refresh(acc, before);
+            if (moved[0] >= 0 && moved[0] == moved[1]) fireTableRowsUpdated(moved[0], moved[0]);
+            else {
+                if (moved[0] >= 0) fireTableRowsDeleted(moved[0], moved[0]);
+                if (moved[1] >= 0) fireTableRowsInserted(moved[1], moved[1]);
+            }
+            report();
+        }
+
+        private void report() {
+            if (search != null) { status.accept(String.format("%,d accounts: %s", index.size(), search)); return; }
+            String column = COLUMNS[key.ordinal()];
+            status.accept(String.format("%,d accounts, sorted by %s (%s)", index.size(), column, descending ? "descending" : "ascending"));
+        }
+    }
+
+    // ----------------- Domain classes -----------------
+
+    /**
+     * Exact money arithmetic on primitive longs holding minor units (cents). Parsing and
+     * formatting only happen at the edges (input fields, files, display); the engine itself
+     * never touches doubles, BigDecimal or boxed values.
+     */
+    static final class Money {
+        private Money() {}
+
+        /** Parses a non-negative decimal amount with at most two fraction digits, e.g. "12", "12.5", "12.50". */
+        static long parse(String s) {
+            s = s.trim();
+            int dot = s.indexOf('.');
+            String whole = dot < 0 ? s : s.substring(0, dot);
+            String frac = dot < 0 ? "" : s.substring(dot + 1);
+            if (whole.isEmpty() && frac.isEmpty()) throw new NumberFormatException("Amount required");
+            if (frac.length() > 2) throw new NumberFormatException("At most 2 decimal places: " + s);
+            long cents = 0;
+            try {
+                for (int i = 0; i < whole.length(); i++) cents = Math.addExact(Math.multiplyExact(cents, 10), digit(whole.charAt(i), s));
+                cents = Math.multiplyExact(cents, 100);
+            } catch (ArithmeticException e) { throw new NumberFormatException("Amount too large: " + s); }
+            if (frac.length() > 0) cents += digit(frac.charAt(0), s) * 10;
+            if (frac.length() > 1) cents += digit(frac.charAt(1), s);
+            if (cents < 0) throw new NumberFormatException("Amount too large: " + s);
+            return cents;
+        }
+
+        private static int digit(char c, String s) {
+            if (c < '0' || c > '9') throw new NumberFormatException("Invalid amount: " + s);
+            return c - '0';
+        }
+
+        /** Rounds a legacy floating-point amount to cents; only used when reading old data. */
+        static long fromDouble(double amount) { return Math.round(amount * 100); }
+
+        static String format(long cents) { return appendTo(new StringBuilder(24), cents).toString(); }
+
+        static StringBuilder appendTo(StringBuilder sb, long cents) {
+            long whole = cents / 100;
+            int frac = (int) Math.abs(cents % 100);
+            if (cents < 0 && whole == 0) sb.append('-');
+            sb.append(whole).append('.');
+            if (frac < 10) sb.append('0');
+            return sb.append(frac);
+        }
+    }
+
+    /** A read-only view of one log entry; built on demand, with the note derived only when rendered. */
+    static class Transaction {
+        enum Type {DEPOSIT, WITHDRAWAL, TRANSFER_IN, TRANSFER_OUT}
+        private final long timestamp;
+        private final Type type;
+        private final long amount;       // cents
+        private final long counterparty; // the other account of a transfer, 0 otherwise
+        private final boolean opening;   // the account's initial deposit
+
+        Transaction(long timestamp, Type type, long amount, long counterparty, boolean opening) {
+            this.timestamp = timestamp;
+            this.type = type;
+            this.amount = amount;
+            this.counterparty = counterparty;
+            this.opening = opening;
+        }
+
+        public long getTimestamp() { return timestamp; }
+        public Type getType() { return type; }
+        public long getAmount() { return amount; }
+        public long getCounterparty() { return counterparty; }
+
+        public String getNote() {
+            switch (type) {
+                case DEPOSIT: return opening ? "Initial deposit" : "Deposit";
+                case WITHDRAWAL: return "Withdrawal";
+                case TRANSFER_IN: return "Transfer from " + counterparty;
+                default: return "Transfer to " + counterparty;
+            }
+        }
+
+        /** Shared by every thread that renders history; DateTimeFormatter is immutable and thread-safe. */
+        static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(72).append('[');
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(timestamp), sb);
+            sb.append("] ").append(type).append(' ');
+            return Money.appendTo(sb, amount).append(" (").append(getNote()).append(')').toString();
+        }
+    }
+
+    /** One calendar month of an account's history: opening and closing balance, and the count and total of each type. */
+    static final class Statement {
+        private final YearMonth month;
+        private final long opening, closing; // cents
+        private final int[] counts;
+        private final long[] totals;
+
+        Statement(YearMonth month, long opening, long closing, int[] counts, long[] totals) {
+            this.month = month;
+            this.opening = opening;
+            this.closing = closing;
+            this.counts = counts;
+            this.totals = totals;
+        }
+
+        public YearMonth getMonth() { return month; }
+        public long getOpeningBalance() { return opening; }
+        public long getClosingBalance() { return closing; }
+        public int getCount(Transaction.Type type) { return counts[type.ordinal()]; }
+        public long getTotal(Transaction.Type type) { return totals[type.ordinal()]; }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(96).append(month).append(" opening ");
+            Money.appendTo(sb, opening).append(" closing ");
+            Money.appendTo(sb, closing);
+            for (Transaction.Type t : Transaction.Type.values()) {
+                sb.append(", ").append(counts[t.ordinal()]).append(' ').append(t).append(' ');
+                Money.appendTo(sb, totals[t.ordinal()]);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Per-account transaction history stored column-wise: parallel primitive columns of
+     * timestamps, type codes, amounts and counterparty account numbers (25 bytes per entry)
+     * instead of a Transaction, Date and note String per entry.
+     *
+     * Entries saved by earlier snapshots live in chunks of the memory-mapped HistoryStore and are
+     * only paged in when read; entries booked since then sit in an in-memory tail. Tail columns are
+     * heap buffers by default, or direct (off-heap) memory with -Dbank.txlog.offheap=true.
+     * Entries older than the retention window move to compressed HistoryArchive segments; they
+     * keep their indexes (archived runs come first) and are inflated only when read.
+     */
+    static final class TransactionLog {
+        static final boolean OFF_HEAP = Boolean.getBoolean("bank.txlog.offheap");
+        static final byte OPENING = 0x40; // flag on the type code of an account's initial deposit
+        private static final Transaction.Type[] TYPES = Transaction.Type.values();
+        private static final int INITIAL_CAPACITY = 4;
+        private static final HistoryStore.Chunk[] NO_CHUNKS = new HistoryStore.Chunk[0];
+        private static final long[] NO_LONGS = new long[0];
+        static final int CHECKPOINT_EVERY = 256;
+
+        private HistoryStore store;                      // holds the chunks; null until attached
+        private HistoryStore.Chunk[] chunks = NO_CHUNKS; // saved entries, oldest first
+        private int[] starts = new int[0];               // index of each chunk's first entry
+        private int persisted;                           // entries held in chunks
+        private int skip;                                // leading chunk entries already archived, dropped by the next merge
+
+        private HistoryArchive archive;                  // holds the archived runs; null until attached
+        private long[] runs = NO_LONGS;                  // archived runs, oldest first: segment, offset, length << 32 | count
+        private int[] runStarts = new int[0];            // index of each run's first entry
+        private int archived;                            // entries in archived runs
+        private long[] months = NO_LONGS;                // rollups of archived months, HistoryArchive.ROLLUP longs each
+        private long[] sums;                             // balance checkpoints: sums[k] is the net of the first k * CHECKPOINT_EVERY entries; null until queried
+        private long net;                                // net of all entries, kept while sums is
+
+        private LongBuffer timestamps, amounts, counterparties; // in-memory tail; null while empty
+        private ByteBuffer types;
+        private int tail;                                // entries in the in-memory columns
+
+        static byte code(Transaction.Type type, boolean opening) { return (byte) (type.ordinal() | (opening ? OPENING : 0)); }
+
+        synchronized void append(long timestamp, byte code, long amount, long counterparty) {
+            if (types == null) grow(INITIAL_CAPACITY);
+            else if (tail == types.capacity()) grow(tail * 2);
+            timestamps.put(tail, timestamp);
+            types.put(tail, code);
+            amounts.put(tail, amount);
+            counterparties.put(tail, counterparty);
+            tail++;
+            if (sums != null) track(code, amount);
+        }
+
+        private void track(byte code, long amount) {
+            net += effect(code, amount);
+            int n = size();
+            if (n % CHECKPOINT_EVERY != 0) return;
+            if (n / CHECKPOINT_EVERY == sums.length) sums = Arrays.copyOf(sums, sums.length * 2);
+            sums[n / CHECKPOINT_EVERY] = net;
+        }
+
+        /**
+         * The balance once every entry booked up to {@code time} (inclusive) was applied, given the
+         * current {@code balance}: a binary search by timestamp (entries are in booking order), the
+         * checkpoint at or before that entry, and at most CHECKPOINT_EVERY entries replayed from
+         * there. Checkpoints are built by one pass over the history on the first query and kept up
+         * to date by append from then on. The caller keeps the balance from changing meanwhile.
+         */
+        synchronized long balanceAt(long balance, long time) {
+            if (sums == null) {
+                long[] s = new long[size() / CHECKPOINT_EVERY + 2];
+                long[] acc = new long[2]; // net so far, entries so far
+                forEach(0, size(), (ts, code, amount, cp) -> {
+                    acc[0] += effect(code, amount);
+                    if (++acc[1] % CHECKPOINT_EVERY == 0) s[(int) (acc[1] / CHECKPOINT_EVERY)] = acc[0];
+                });
+                sums = s;
+                net = acc[0];
+            }
+            int lo = 0, hi = size(); // first entry booked after time
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamp(mid) <= time) lo = mid + 1;
+                else hi = mid;
+            }
+            long[] through = {sums[lo / CHECKPOINT_EVERY]};
+            forEach(lo - lo % CHECKPOINT_EVERY, lo, (ts, code, amount, cp) -> through[0] += effect(code, amount));
+            return balance - (net - through[0]);
+        }
+
+        /** Converts an entry from a format that still carried the note text. */
+        void appendLegacy(long timestamp, Transaction.Type type, long amount, String note) {
+            append(timestamp, code(type, "Initial deposit".equals(note)), amount, legacyCounterparty(type, note));
+        }
+
+        /** The other account of a transfer, which old formats only kept at the end of the note; 0 if none. */
+        static long legacyCounterparty(Transaction.Type type, String note) {
+            if (type != Transaction.Type.TRANSFER_IN && type != Transaction.Type.TRANSFER_OUT) return 0;
+            try { return Long.parseLong(note.substring(note.lastIndexOf(' ') + 1)); }
+            catch (RuntimeException e) { return 0; }
+        }
+
+        synchronized int size() { return archived + persisted - skip + tail; }
+
+        synchronized long timestamp(int i) {
+            Objects.checkIndex(i, size());
+            if (i < archived) return run(i).timestamps[i - runStarts[runOf(i)]];
+            return rawTimestamp(i - archived + skip);
+        }
+
+        synchronized Transaction get(int i) {
+            Objects.checkIndex(i, size());
+            if (i < archived) return run(i).get(i - runStarts[runOf(i)]);
+            int p = i - archived + skip;
+            byte code = rawCode(p);
+            return new Transaction(rawTimestamp(p), TYPES[code & 0x0f], rawAmount(p), rawCounterparty(p), (code & OPENING) != 0);
+        }
+
+        /** A list over the first {@code size()} entries; entries are materialized as they are read. */
+        java.util.List<Transaction> view() {
+            int n = size();
+            return new AbstractList<Transaction>() {
+                public Transaction get(int i) { return TransactionLog.this.get(Objects.checkIndex(i, n)); }
+                public int size() { return n; }
+            };
+        }
+
+        interface EntryVisitor { void visit(long timestamp, byte code, long amount, long counterparty); }
+
+        /** Visits entries [from, to) in order, under one hold of the monitor. */
+        synchronized void forEach(int from, int to, EntryVisitor v) {
+            Objects.checkFromToIndex(from, to, size());
+            for (int i = from; i < Math.min(to, archived); ) {
+                int k = runOf(i);
+                HistoryArchive.Run r = run(i);
+                for (int j = i - runStarts[k]; j < r.count && i < to; j++, i++) v.visit(r.timestamps[j], r.codes[j], r.amounts[j], r.counterparties[j]);
+            }
+            for (int p = Math.max(from, archived) - archived + skip, end = to - archived + skip; p < end; p++) {
+                v.visit(rawTimestamp(p), rawCode(p), rawAmount(p), rawCounterparty(p));
+            }
+        }
+
+        static Transaction.Type type(byte code) { return TYPES[code & 0x0f]; }
+
+        /** How an entry moves the balance. */
+        static long effect(byte code, long amount) {
+            int t = code & 0x0f;
+            return t == Transaction.Type.DEPOSIT.ordinal() || t == Transaction.Type.TRANSFER_IN.ordinal() ? amount : -amount;
+        }
+
+        /** Up to {@code limit} entries, newest first, skipping the {@code offset} newest. */
+        synchronized java.util.List<Transaction> page(int offset, int limit) {
+            if (offset < 0 || limit < 0) throw new IllegalArgumentException("offset and limit must be >= 0");
+            java.util.List<Transaction> page = new ArrayList<>(Math.min(limit, 256));
+            for (int i = size() - 1 - offset; i >= 0 && page.size() < limit; i--) page.add(get(i));
+            return page;
+        }
+
+        private int runOf(int i) {
+            int k = runStarts.length - 1;
+            while (runStarts[k] > i) k--;
+            return k;
+        }
+
+        private HistoryArchive.Run run(int i) { return archive.run(runs, runOf(i)); }
+
+        // Raw column access by position among the chunk and tail entries (archived ones excluded
+        // except for the first skip, which are still in the chunks); callers hold the monitor.
+
+        long rawTimestamp(int i) {
+            if (i >= persisted) return timestamps.get(i - persisted);
+            int k = chunkOf(i);
+            return chunks[k].timestamp(store, i - starts[k]);
+        }
+
+        long rawAmount(int i) {
+            if (i >= persisted) return amounts.get(i - persisted);
+            int k = chunkOf(i);
+            return chunks[k].amount(store, i - starts[k]);
+        }
+
+        long rawCounterparty(int i) {
+            if (i >= persisted) return counterparties.get(i - persisted);
+            int k = chunkOf(i);
+            return chunks[k].counterparty(store, i - starts[k]);
+        }
+
+        byte rawCode(int i) {
+            if (i >= persisted) return types.get(i - persisted);
+            int k = chunkOf(i);
+            return chunks[k].code(store, i - starts[k]);
+        }
+
+        private int chunkOf(int i) {
+            int k = chunks.length - 1;
+            while (starts[k] > i) k--;
+            return k;
+        }
+
+        /** Raw positions [first, end) of the entries that are not archived yet. */
+        synchronized int firstLive() { return skip; }
+        synchronized int liveEnd() { return persisted + tail; }
+
+        /** Records that the first {@code count} live entries were written to {@code run} of an archive segment. */
+        synchronized void archived(HistoryArchive archive, long segment, long offset, int length, int count, long[] rollups) {
+            addRun(archive, segment, offset, length, count, rollups);
+            skip += count;
+        }
+
+        /** Adds a run read back from a segment index, in segment order. */
+        synchronized void addRun(HistoryArchive archive, long segment, long offset, int length, int count, long[] rollups) {
+            this.archive = archive;
+            int n = runs.length / 3;
+            runs = Arrays.copyOf(runs, runs.length + 3);
+            runs[3 * n] = segment;
+            runs[3 * n + 1] = offset;
+            runs[3 * n + 2] = (long) length << 32 | count;
+            runStarts = Arrays.copyOf(runStarts, n + 1);
+            runStarts[n] = archived;
+            archived += count;
+            months = HistoryArchive.merge(months, rollups);
+        }
+
+        /** Monthly statements, oldest first: archived months as rolled up, later ones summed from the entries. */
+        synchronized java.util.List<Statement> statements(long balance) {
+            int first = skip, end = persisted + tail;
+            long opening = balance;
+            for (int p = first; p < end; p++) opening -= effect(rawCode(p), rawAmount(p));
+            long[] live = HistoryArchive.rollup(this, first, end, opening);
+            long[] all = HistoryArchive.merge(months, live);
+            java.util.List<Statement> out = new ArrayList<>(all.length / HistoryArchive.ROLLUP);
+            for (int m = 0; m < all.length; m += HistoryArchive.ROLLUP) out.add(HistoryArchive.statement(all, m));
+            return out;
+        }
+
+        /**
+         * Moves the tail into {@code target}: appended as a new chunk, or merged with the existing
+         * chunks into one once there are too many (or everything when {@code rewrite} is set).
+         * A merge leaves out the entries that were archived since the chunks were written.
+         */
+        synchronized void checkpoint(HistoryStore target, boolean rewrite) throws IOException {
+            if (!rewrite && target == store && tail == 0) return;
+            java.util.List<HistoryStore.Chunk> out = new ArrayList<>();
+            int total = persisted + tail;
+            if (rewrite || target != store || chunks.length >= HistoryStore.MAX_CHUNKS) {
+                target.write(this, skip, total, out);
+                total -= skip;
+                skip = 0;
+            } else {
+                out.addAll(Arrays.asList(chunks));
+                target.write(this, persisted, total, out);
+            }
+            store = target;
+            chunks = out.toArray(NO_CHUNKS);
+            starts = new int[chunks.length];
+            for (int k = 1; k < chunks.length; k++) starts[k] = starts[k - 1] + chunks[k - 1].count;
+            persisted = total;
+            tail = 0;
+            timestamps = amounts = counterparties = null;
+            types = null;
+        }
+
+        synchronized long persistedBytes() {
+            long n = 0;
+            for (HistoryStore.Chunk c : chunks) n += c.span();
+            return Math.max(0, n - 25L * skip); // archived entries still in the chunks are garbage
+        }
+
+        synchronized void attach(HistoryStore store) { this.store = store; }
+
+        /** The saved chunks; the array is replaced, never modified, so callers may keep it. */
+        synchronized HistoryStore.Chunk[] chunks() { return chunks; }
+
+        /** Leading chunk entries that are archived; recorded with the chunks in a snapshot. */
+        synchronized int skipped() { return skip; }
+
+        /** Reads chunk references and an inline tail as written by {@link SnapshotFile} {@code version}. */
+        synchronized void decode(ByteBuffer in, int version) {
+            setChunks(in.getInt(), k -> new HistoryStore.Chunk(in.getLong(), in.getInt()));
+            skip = version >= 2 ? in.getInt() : 0;
+            int n = in.getInt();
+            reserve(n);
+            for (int i = 0; i < n; i++) timestamps.put(i, in.getLong());
+            for (int i = 0; i < n; i++) types.put(i, in.get());
+            for (int i = 0; i < n; i++) amounts.put(i, in.getLong());
+            for (int i = 0; i < n; i++) counterparties.put(i, in.getLong());
+            tail = n;
+        }
+
+        // Readers for the serialized form of earlier versions.
+
+        synchronized void readChunkRefs(DataInput in) throws IOException {
+            int n = in.readInt();
+            HistoryStore.Chunk[] read = new HistoryStore.Chunk[n];
+            for (int k = 0; k < n; k++) read[k] = new HistoryStore.Chunk(in.readLong(), in.readInt());
+            setChunks(n, k -> read[k]);
+        }
+
+        synchronized void readFrom(DataInput in) throws IOException {
+            int n = in.readInt();
+            reserve(n);
+            for (int i = 0; i < n; i++) timestamps.put(i, in.readLong());
+            for (int i = 0; i < n; i++) types.put(i, in.readByte());
+            for (int i = 0; i < n; i++) amounts.put(i, in.readLong());
+            for (int i = 0; i < n; i++) counterparties.put(i, in.readLong());
+            tail = n;
+        }
+
+        private void setChunks(int n, java.util.function.IntFunction<HistoryStore.Chunk> chunk) {
+            chunks = n == 0 ? NO_CHUNKS : new HistoryStore.Chunk[n];
+            starts = new int[n];
+            persisted = 0;
+            for (int k = 0; k < n; k++) {
+                chunks[k] = chunk.apply(k);
+                starts[k] = persisted;
+                persisted += chunks[k].count;
+            }
+        }
+
+        private void reserve(int n) { if (n > 0 && (types == null || n > types.capacity())) grow(n); }
+
+        private void grow(int capacity) {
+            timestamps = copy(timestamps, longs(capacity));
+            amounts = copy(amounts, longs(capacity));
+            counterparties = copy(counterparties, longs(capacity));
+            ByteBuffer t = bytes(capacity);
+            if (types != null) {
+                ByteBuffer src = types.duplicate();
+                src.clear();
+                t.put(src);
+            }
+            types = t;
+        }
+
+        private static LongBuffer copy(LongBuffer from, LongBuffer to) {
+            if (from == null) return to;
+            LongBuffer src = from.duplicate();
+            src.clear();
+            to.put(src);
+            return to;
+        }
+
+        private static LongBuffer longs(int n) {
+            return OFF_HEAP ? ByteBuffer.allocateDirect(n * 8).order(ByteOrder.nativeOrder()).asLongBuffer() : LongBuffer.allocate(n);
+        }
+
+        private static ByteBuffer bytes(int n) { return OFF_HEAP ? ByteBuffer.allocateDirect(n) : ByteBuffer.allocate(n); }
+    }
+
+    /**
+     * A hashed PIN, held as raw bytes and compared in constant time. The stored form (snapshots,
+     * journal) is either 64 hex digits, the unsalted SHA-256 that all PINs used originally, or
+     * "pbkdf2$iterations$salt$hash" (hex) for salted PBKDF2-HMAC-SHA256. New PINs get the latter
+     * when -Dbank.pin.iterations is above 0, with that cost; existing hashes keep working either way.
+     */
+    static final class PinHash {
+        static final int ITERATIONS = Integer.getInteger("bank.pin.iterations", 0);
+        private static final String PBKDF2 = "pbkdf2";
+        private static final SecureRandom RANDOM = new SecureRandom();
+        private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+            try { return MessageDigest.getInstance("SHA-256"); }
+            catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+        });
+        private static final ThreadLocal<SecretKeyFactory> KDF = ThreadLocal.withInitial(() -> {
+            try { return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256"); }
+            catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+        });
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final byte[] hash;
+        private final byte[] salt; // null for plain SHA-256
+        private final int iterations;
+
+        private PinHash(byte[] hash, byte[] salt, int iterations) {
+            this.hash = hash;
+            this.salt = salt;
+            this.iterations = iterations;
+        }
+
+        static PinHash create(String pin) {
+            if (ITERATIONS <= 0) return new PinHash(sha256(pin), null, 0);
+            byte[] salt = new byte[16];
+            RANDOM.nextBytes(salt);
+            return new PinHash(pbkdf2(pin, salt, ITERATIONS), salt, ITERATIONS);
+        }
+
+        static PinHash parse(String stored) {
+            if (!stored.startsWith(PBKDF2 + "$")) return new PinHash(unhex(stored), null, 0);
+            String[] f = stored.split("\\$");
+            if (f.length != 4) throw new IllegalArgumentException("Malformed PIN hash");
+            return new PinHash(unhex(f[3]), unhex(f[2]), Integer.parseInt(f[1]));
+        }
+
+        boolean matches(String pin) {
+            return MessageDigest.isEqual(salt == null ? sha256(pin) : pbkdf2(pin, salt, iterations), hash);
+        }
+
+        String encoded() { return salt == null ? hex(hash) : PBKDF2 + "$" + iterations + "$" + hex(salt) + "$" + hex(hash); }
+
+        private static byte[] sha256(String pin) {
+            MessageDigest md = SHA256.get();
+            md.reset();
+            return md.digest(pin.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static byte[] pbkdf2(String pin, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, 256);
+            try { return KDF.get().generateSecret(spec).getEncoded(); }
+            catch (InvalidKeySpecException e) { throw new IllegalStateException(e); }
+            finally { spec.clearPassword(); }
+        }
+
+        private static String hex(byte[] b) {
+            char[] c = new char[b.length * 2];
+            for (int i = 0; i < b.length; i++) {
+                c[2 * i] = HEX[(b[i] >> 4) & 15];
+                c[2 * i + 1] = HEX[b[i] & 15];
+            }
+            return new String(c);
+        }
+
+        private static byte[] unhex(String s) {
+            if ((s.length() & 1) != 0) throw new IllegalArgumentException("Malformed PIN hash");
+            byte[] b = new byte[s.length() / 2];
+            for (int i = 0; i < b.length; i++) {
+                int hi = Character.digit(s.charAt(2 * i), 16), lo = Character.digit(s.charAt(2 * i + 1), 16);
+                if (hi < 0 || lo < 0) throw new IllegalArgumentException("Malformed PIN hash");
+                b[i] = (byte) (hi << 4 | lo);
+            }
+            return b;
+        }
+    }
+
+    static class BankAccount implements Serializable {
+        private static final long serialVersionUID = 2L;
+        private final String owner;
+        private final long accountNumber;
+        private final PinHash pin;
+        private volatile long balance; // cents
+        private final TransactionLog log = new TransactionLog();
+        private volatile boolean frozen = false;
+
+        public BankAccount(String owner, long accountNumber, String plainPin, long initial) {
+            this(owner, accountNumber, PinHash.create(plainPin), initial, System.currentTimeMillis());
+        }
+
+        private BankAccount(String owner, long accountNumber, PinHash pin, long initial, long openedAt) {
+            this(owner, accountNumber, pin);
+            if (initial < 0) throw new IllegalArgumentException("Initial deposit must be >= 0");
+            this.balance = initial;
+            log.append(openedAt, TransactionLog.code(Transaction.Type.DEPOSIT, true), initial, 0);
+        }
+
+        /** An empty shell that restore code fills from saved data; {@code pinHash} is the stored form. */
+        private BankAccount(String owner, long accountNumber, String pinHash) {
+            this(owner, accountNumber, PinHash.parse(pinHash));
+        }
+
+        private BankAccount(String owner, long accountNumber, PinHash pin) {
+            this.owner = owner;
+            this.accountNumber = accountNumber;
+            this.pin = pin;
+        }
+
+        public boolean verifyPin(String pin) {
+            long start = System.nanoTime();
+            boolean ok = this.pin.matches(pin);
+            Metrics.VERIFY_PIN.since(start);
+            return ok;
+        }
+
+        // Mutators return the booking timestamp so callers can journal exactly what was recorded.
+
+        public synchronized long deposit(long amount) {
+            if (frozen) throw new IllegalStateException("Account is frozen");
+            if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
+            checkCredit(amount);
+            return apply(System.currentTimeMillis(), Transaction.Type.DEPOSIT, amount, 0);
+        }
+
+        public synchronized long withdraw(long amount) {
+            if (frozen) throw new IllegalStateException("Account is frozen");
+            if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
+            if (amount > balance) throw new IllegalArgumentException("Insufficient funds");
+            return apply(System.currentTimeMillis(), Transaction.Type.WITHDRAWAL, amount, 0);
+        }
+
+        public synchronized long transferOut(long amount, long toAccount) {
+            if (frozen) throw new IllegalStateException("Account is frozen");
+            if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
+            if (amount > balance) throw new IllegalArgumentException("Insufficient funds");
+            return apply(System.currentTimeMillis(), Transaction.Type.TRANSFER_OUT, amount, toAccount);
+        }
+
+        public synchronized long transferIn(long amount, long fromAccount) {
+            checkCredit(amount);
+            return apply(System.currentTimeMillis(), Transaction.Type.TRANSFER_IN, amount, fromAccount);
+        }
+
+        /**
+         * Books validated transfers that share one timestamp (negative amounts went out) and
+         * moves the balance once, by their sum {@code net}.
+         */
+        synchronized void applyTransfers(long timestamp, long[] amounts, long[] counterparties, int count, long net) {
+            balance = Math.addExact(balance, net);
+            for (int i = 0; i < count; i++) {
+                Transaction.Type type = amounts[i] < 0 ? Transaction.Type.TRANSFER_OUT : Transaction.Type.TRANSFER_IN;
+                log.append(timestamp, TransactionLog.code(type, false), Math.abs(amounts[i]), counterparties[i]);
+            }
+        }
+
+        /** Rejects a credit that would overflow the balance, before anything is changed. */
+        synchronized void checkCredit(long amount) {
+            if (balance > Long.MAX_VALUE - amount) throw new IllegalArgumentException("Balance limit exceeded");
+        }
+
+        /** Books an already validated transaction; also used when replaying the journal. */
+        synchronized long apply(long timestamp, Transaction.Type type, long amount, long counterparty) {
+            boolean credit = type == Transaction.Type.DEPOSIT || type == Transaction.Type.TRANSFER_IN;
+            balance = credit ? Math.addExact(balance, amount) : Math.subtractExact(balance, amount);
+            log.append(timestamp, TransactionLog.code(type, false), amount, counterparty);
+            return timestamp;
+        }
+
+        public long getBalance() { return balance; }
+        public long getAccountNumber() { return accountNumber; }
+        public String getOwner() { return owner; }
+        public java.util.List<Transaction> getTransactions() { return log.view(); }
+        /** A page of history, newest first; only the entries on the page are read from disk. */
+        public java.util.List<Transaction> getTransactions(int offset, int limit) { return log.page(offset, limit); }
+        /** Monthly statements, oldest first; archived months come from their rollups without reading entries. */
+        public synchronized java.util.List<Statement> getStatements() { return log.statements(balance); }
+        /** The balance as of {@code time} (epoch millis): after every transaction booked up to then. */
+        public synchronized long getBalanceAt(long time) { return log.balanceAt(balance, time); }
+        public void freeze() { frozen = true; }
+        public void unfreeze() { frozen = false; }
+        public boolean isFrozen() { return frozen; }
+
+        /**
+         * Serialized form of an account as written by earlier versions; only read now, when a
+         * bank_data.ser is migrated to the binary snapshot (see {@link SnapshotFile}).
+         */
+        private static final class SerialForm implements Serializable {
+            private static final long serialVersionUID = 1L;
+            private static final int VERSION = 3; // 1 wrote rows with notes, 2 the whole log inline
+            private transient BankAccount account;
+
+            private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+                in.defaultReadObject();
+                int version = in.readInt();
+                if (version < 1 || version > VERSION) throw new InvalidObjectException("Unsupported account format " + version);
+                account = new BankAccount(in.readUTF(), in.readLong(), in.readUTF());
+                account.balance = in.readLong();
+                account.frozen = in.readBoolean();
+                if (version == 1) {
+                    Transaction.Type[] types = Transaction.Type.values();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        account.log.appendLegacy(in.readLong(), types[in.readByte()], in.readLong(), in.readUTF());
+                    }
+                } else {
+                    if (version >= 3) account.log.readChunkRefs(in);
+                    account.log.readFrom(in);
+                }
+            }
+
+            private Object readResolve() { return account; }
+        }
+    }
+
+    /**
+     * Reads snapshots written before amounts were stored in cents. The stream's class descriptors
+     * are swapped for these look-alike classes (same field names and types as the old classes),
+     * and the result is converted to the current model.
+     */
+    static final class LegacySnapshot {
+        /** How far apart the two legs of one old transfer can have been stamped. */
+        static final long LEG_SKEW_MILLIS = 1000;
+
+        private LegacySnapshot() {}
+
+        static final class Manager implements Serializable {
+            private static final long serialVersionUID = 1L;
+            private long nextAccount;
+            private Map<Long, Account> accounts;
+        }
+
+        static final class Account implements Serializable {
+            private static final long serialVersionUID = 1L;
+            private long accountNumber;
+            private double balance;
+            private boolean frozen;
+            private String owner;
+            private String pinHash;
+            private java.util.List<Txn> transactions;
+        }
+
+        static final class Txn implements Serializable {
+            private static final long serialVersionUID = 3514798724271290345L;
+            private double amount;
+            private String note;
+            private Date timestamp;
+            private Transaction.Type type;
+        }
+
+        /** Object stream that resolves pre-cents class descriptors to the look-alikes above. */
+        static final class Input extends ObjectInputStream {
+            Input(InputStream in) throws IOException { super(in); }
+
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                ObjectStreamClass d = super.readClassDescriptor();
+                String name = d.getName();
+                long uid = d.getSerialVersionUID();
+                if (uid == Manager.serialVersionUID && name.equals(AccountManager.class.getName())) return ObjectStreamClass.lookup(Manager.class);
+                if (uid == Account.serialVersionUID && name.equals(BankAccount.class.getName())) return ObjectStreamClass.lookup(Account.class);
+                if (uid == Txn.serialVersionUID && name.equals(Transaction.class.getName())) return ObjectStreamClass.lookup(Txn.class);
+                return d;
+            }
+        }
+
+        /**
+         * Converts the accounts. Each leg of an old transfer was stamped with its own clock read,
+         * so a TRANSFER_IN may be booked a little after its TRANSFER_OUT; it is given the time of
+         * its TRANSFER_OUT, as legs are booked now, so that the audit can pair them.
+         */
+        static AccountManager upgrade(Manager old) {
+            AccountManager m = new AccountManager();
+            m.nextAccount = old.nextAccount;
+            Map<java.util.List<Long>, ArrayDeque<Long>> outs = transfersOut(old);
+            for (Account o : old.accounts.values()) {
+                BankAccount a = new BankAccount(o.owner, o.accountNumber, o.pinHash);
+                a.balance = Money.fromDouble(o.balance);
+                a.frozen = o.frozen;
+                long previous = Long.MIN_VALUE;
+                for (Txn t : o.transactions) {
+                    long ts = t.timestamp.getTime(), amount = Money.fromDouble(t.amount);
+                    if (t.type == Transaction.Type.TRANSFER_IN) {
+                        long from = TransactionLog.legacyCounterparty(t.type, t.note);
+                        ts = Math.max(previous, outTime(outs.get(Arrays.asList(from, o.accountNumber, amount)), ts)); // history stays in time order
+                    }
+                    a.log.appendLegacy(ts, t.type, amount, t.note);
+                    previous = ts;
+                }
+                m.put(a);
+            }
+            return m;
+        }
+
+        /** Booking times of the TRANSFER_OUT legs, oldest first, by (from, to, amount in cents). */
+        private static Map<java.util.List<Long>, ArrayDeque<Long>> transfersOut(Manager old) {
+            Map<java.util.List<Long>, java.util.List<Long>> times = new HashMap<>();
+            for (Account o : old.accounts.values()) {
+                for (Txn t : o.transactions) {
+                    if (t.type != Transaction.Type.TRANSFER_OUT) continue;
+                    java.util.List<Long> key = Arrays.asList(o.accountNumber, TransactionLog.legacyCounterparty(t.type, t.note), Money.fromDouble(t.amount));
+                    times.computeIfAbsent(key, k -> new ArrayList<>()).add(t.timestamp.getTime());
+                }
+            }
+            Map<java.util.List<Long>, ArrayDeque<Long>> outs = new HashMap<>();
+            times.forEach((key, ts) -> {
+                Collections.sort(ts);
+                outs.put(key, new ArrayDeque<>(ts));
+            });
+            return outs;
+        }
+
+        /**
+         * Takes the oldest TRANSFER_OUT of {@code outs} booked at most {@link #LEG_SKEW_MILLIS}
+         * before a TRANSFER_IN at {@code ts} and returns its time, or {@code ts} if there is none.
+         * Older ones have no TRANSFER_IN and are skipped.
+         */
+        private static long outTime(ArrayDeque<Long> outs, long ts) {
+            if (outs == null) return ts;
+            while (!outs.isEmpty() && outs.peekFirst() < ts - LEG_SKEW_MILLIS) outs.pollFirst();
+            return !outs.isEmpty() && outs.peekFirst() <= ts ? outs.pollFirst() : ts;
+        }
+    }
+
+    /**
+     * Account index and transfer engine. Accounts are partitioned into {@link Shard}s by account
+     * number: ranges of {@link #SHARD_RANGE} consecutive numbers are dealt round-robin, so new
+     * accounts spread over every shard. Each shard has its own map, lock and files, and shards are
+     * snapshotted and loaded in parallel on the fork-join pool. Every operation locks only the
+     * accounts it touches (transfers take both monitors in account-number order, so they cannot
+     * deadlock) and shares the read side of their shards' locks; a snapshot of a shard takes the
+     * write side, pausing that shard alone. The journal is shared, so a transfer between shards
+     * is one record and is replayed on both sides or neither.
+     * Latencies and lock waits are recorded in {@link Metrics}; owner and balance queries are
+     * answered from a {@link SecondaryIndex} kept up to date by every operation.
+     * Snapshots are written as {@link SnapshotFile}s; the class stays Serializable only so that
+     * bank_data.ser files from earlier versions can still be read and migrated.
+     */
+    static class AccountManager implements Serializable, Closeable {
+        private static final long serialVersionUID = 2L;
+        /** Journal records after which the next save compacts them into a fresh snapshot. */
+        static final int SNAPSHOT_INTERVAL = 10_000;
+        /** Minutes a login session stays valid without being used (-Dbank.session.minutes). */
+        static final long SESSION_MINUTES = Long.getLong("bank.session.minutes", 30);
+        private static final SecureRandom TOKENS = new SecureRandom();
+        /** Consecutive account numbers kept in one shard. */
+        static final int SHARD_RANGE = 1024;
+        /** Shards of a new bank (-Dbank.shards); an existing bank keeps the count it was saved with. */
+        static final int SHARDS = Integer.getInteger("bank.shards", Math.max(4, Runtime.getRuntime().availableProcessors()));
+        /** Legs one {@link #transferBatch} may carry; its journal record holds them all. */
+        static final int MAX_BATCH_LEGS = 100_000;
+        // the three serialized fields are only read from old bank_data.ser files (see readObject)
+        private Map<Long, BankAccount> accounts;
+        private long nextAccount = 1000000000L;
+        private long historyGeneration; // which <file>.hist.N the chunk references of an old file point into
+        private transient Shard[] shards;
+        private transient Journal journal;
+        private transient HistoryStore legacyHistory; // history of a pre-shard data file, until the first save copies it
+        private transient Object saveLock = new Object(); // one snapshot at a time
+        private transient SecondaryIndex lookup = new SecondaryIndex();
+        private transient Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+        /**
+         * One partition of the bank: its accounts, the lock its snapshots take, and its own
+         * snapshot and history files ({@code <data file>.shard-N} and {@code .shard-N.hist.G}).
+         * {@code snapshotSeq} is the journal sequence its snapshot covers; older records are not
+         * replayed into it.
+         */
+        static final class Shard {
+            final int id;
+            final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            Map<Long, BankAccount> accounts = new ConcurrentHashMap<>();
+            HistoryStore history;
+            HistoryArchive archive; // null until loaded or first saved
+            long historyGeneration, snapshotSeq, nextAccount, archiveSegments; // the last four as recorded in its snapshot
+
+            Shard(int id) { this.id = id; }
+
+            String file(String dataFile) { return dataFile + ".shard-" + id; }
+        }
+
+        public AccountManager() { this(SHARDS); }
+
+        AccountManager(int shardCount) {
+            shards = new Shard[shardCount];
+            for (int i = 0; i < shardCount; i++) shards[i] = new Shard(i);
+        }
+
+        /** A logged-in account; expires after {@link #SESSION_MINUTES} without use. */
+        private static final class Session {
+            final long account;
+            volatile long lastUsed = System.currentTimeMillis();
+            Session(long account) { this.account = account; }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            shards = new AccountManager().shards;
+            for (BankAccount a : accounts.values()) put(a);
+            accounts = null;
+            saveLock = new Object();
+            lookup = new SecondaryIndex();
+            sessions = new ConcurrentHashMap<>();
+        }
+
+        Shard shardOf(long acc) { return shards[(int) Math.floorMod(Math.floorDiv(acc, SHARD_RANGE), (long) shards.length)]; }
+
+        private void put(BankAccount a) { shardOf(a.accountNumber).accounts.put(a.accountNumber, a); }
+
+        public BankAccount createAccount(String owner, String pin, long initial) {
+            long lsn, start = System.nanoTime();
+            BankAccount a = new BankAccount(owner, allocateAccountNumber(), pin, initial);
+            Shard shard = shardOf(a.accountNumber);
+            long t = System.nanoTime();
+            shard.lock.readLock().lock();
+            Metrics.checkpointAcquired(t);
+            try {
+                synchronized (a) { // journal the creation before anyone can see (and mutate) the account
+                    shard.accounts.put(a.accountNumber, a);
+                    lookup.add(a);
+                    lsn = log(Journal.CREATE, a.log.timestamp(0), a.accountNumber, 0, initial,
+                            Journal.encodeCreate(owner, a.pin.encoded()));
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+                Metrics.CREATE.since(start);
+            }
+            commit(lsn);
+            return a;
+        }
+
+        private synchronized long allocateAccountNumber() { return nextAccount++; }
+
+        public BankAccount getAccount(long acc) { return shardOf(acc).accounts.get(acc); }
+
+        /** A live view of every shard's accounts. */
+        public Collection<BankAccount> listAllAccounts() {
+            return new AbstractCollection<BankAccount>() {
+                @Override public int size() {
+                    long n = 0;
+                    for (Shard s : shards) n += s.accounts.size();
+                    return (int) Math.min(n, Integer.MAX_VALUE);
+                }
+                @Override public Iterator<BankAccount> iterator() { return stream().iterator(); }
+                @Override public Spliterator<BankAccount> spliterator() { return Arrays.stream(shards).flatMap(s -> s.accounts.values().stream()).spliterator(); }
+                @Override public java.util.stream.Stream<BankAccount> parallelStream() { return Arrays.stream(shards).parallel().flatMap(s -> s.accounts.values().stream()); }
+            };
+        }
+
+        /**
+         * The sum of all balances at one instant. Every shard is held still while it is added up,
+         * so no transfer is seen half-done; money is only created or destroyed by deposits and withdrawals.
+         */
+        public long totalBalance() {
+            for (Shard s : shards) s.lock.writeLock().lock();
+            try {
+                long sum = 0;
+                for (Shard s : shards) for (BankAccount a : s.accounts.values()) sum = Math.addExact(sum, a.balance);
+                return sum;
+            } finally {
+                for (Shard s : shards) s.lock.writeLock().unlock();
+            }
+        }
+
+        int shardCount() { return shards.length; }
+
+        /** Reconciles every account's balance, transfer and the bank's total; see {@link Audit}. */
+        public Audit.Report audit() { return Audit.run(this); }
+
+        /** Balances and history lengths at one instant, every shard held still as in totalBalance(). */
+        Audit.Cut auditCut() {
+            for (Shard s : shards) s.lock.writeLock().lock();
+            try {
+                Audit.Cut cut = new Audit.Cut(listAllAccounts().toArray(new BankAccount[0]));
+                for (int i = 0; i < cut.accounts.length; i++) {
+                    cut.balances[i] = cut.accounts[i].balance;
+                    cut.sizes[i] = cut.accounts[i].log.size();
+                }
+                return cut;
+            } finally {
+                for (Shard s : shards) s.lock.writeLock().unlock();
+            }
+        }
+
+        // Queries over the secondary indexes; each returns account numbers, at most limit of them.
+
+        /** Accounts of an owner (case-insensitive), by account number. */
+        public long[] findByOwner(String owner, int limit) { return lookup.ownerEquals(owner, limit); }
+
+        /** Accounts whose owner starts with {@code prefix} (case-insensitive), by owner. */
+        public long[] findByOwnerPrefix(String prefix, int limit) { return lookup.ownerStartsWith(prefix, limit); }
+
+        /** The largest balances, largest first. */
+        public long[] topBalances(int limit) { return lookup.topBalances(limit); }
+
+        /** Accounts with a balance in [min, max] cents, smallest first. */
+        public long[] findByBalance(long min, long max, int limit) { return lookup.balanceBetween(min, max, limit); }
+
+        public void deposit(long acc, long amount) { commit(applyDeposit(acc, amount)); }
+
+        public void withdraw(long acc, long amount) { commit(applyWithdraw(acc, amount)); }
+
+        public void transfer(long fromAcc, String fromPin, long toAcc, long amount) {
+            BankAccount from = getAccount(fromAcc);
+            if (from == null || getAccount(toAcc) == null) throw new IllegalArgumentException("Account not found");
+            if (!from.verifyPin(fromPin)) throw new SecurityException("Invalid PIN");
+            commit(applyTransfer(fromAcc, toAcc, amount));
+        }
+
+        /** Transfers from the session's account; the PIN was checked once, at login. */
+        public void transfer(String session, long toAcc, long amount) {
+            long fromAcc = sessionAccount(session);
+            if (getAccount(toAcc) == null) throw new IllegalArgumentException("Account not found");
+            commit(applyTransfer(fromAcc, toAcc, amount));
+        }
+
+        /** Checks the PIN and returns a session token for later operations on the account. */
+        public String login(long acc, String pin) {
+            BankAccount a = getAccount(acc);
+            if (a == null) throw new IllegalArgumentException("Account not found");
+            if (!a.verifyPin(pin)) throw new SecurityException("Invalid PIN");
+            if (a.isFrozen()) throw new IllegalStateException("Account is frozen");
+            long now = System.currentTimeMillis();
+            sessions.values().removeIf(s -> now - s.lastUsed > TimeUnit.MINUTES.toMillis(SESSION_MINUTES));
+            byte[] token = new byte[32];
+            TOKENS.nextBytes(token);
+            String id = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+            sessions.put(id, new Session(acc));
+            return id;
+        }
+
+        public void logout(String session) { if (session != null) sessions.remove(session); }
+
+        /** The account a live session belongs to; renews the session. */
+        long sessionAccount(String session) {
+            Session s = session == null ? null : sessions.get(session);
+            long now = System.currentTimeMillis();
+            if (s == null || now - s.lastUsed > TimeUnit.MINUTES.toMillis(SESSION_MINUTES)) {
+                if (s != null) sessions.remove(session);
+                throw new SecurityException("Session expired, please log in again");
+            }
+            s.lastUsed = now;
+            return s.account;
+        }
+
+        // The apply* methods book an operation and journal it without waiting for the fsync; they
+        // return the journal position to hand to commit(), which lets callers batch many operations
+        // behind a single sync.
+
+        long applyDeposit(long acc, long amount) {
+            long start = System.nanoTime();
+            Shard shard = shardOf(acc);
+            shard.lock.readLock().lock();
+            Metrics.checkpointAcquired(start);
+            try {
+                BankAccount a = require(acc);
+                long t = System.nanoTime();
+                synchronized (a) {
+                    Metrics.monitorAcquired(t);
+                    long before = a.getBalance(), ts = a.deposit(amount);
+                    lookup.balanceChanged(acc, before, a.getBalance());
+                    return log(Journal.DEPOSIT, ts, acc, 0, amount, null);
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+                Metrics.DEPOSIT.since(start);
+            }
+        }
+
+        long applyWithdraw(long acc, long amount) {
+            long start = System.nanoTime();
+            Shard shard = shardOf(acc);
+            shard.lock.readLock().lock();
+            Metrics.checkpointAcquired(start);
+            try {
+                BankAccount a = require(acc);
+                long t = System.nanoTime();
+                synchronized (a) {
+                    Metrics.monitorAcquired(t);
+                    long before = a.getBalance(), ts = a.withdraw(amount);
+                    lookup.balanceChanged(acc, before, a.getBalance());
+                    return log(Journal.WITHDRAW, ts, acc, 0, amount, null);
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+                Metrics.WITHDRAW.since(start);
+            }
+        }
+
+        /** Moves money without a PIN check; callers are responsible for authorization. */
+        long applyTransfer(long fromAcc, long toAcc, long amount) {
+            long start = System.nanoTime();
+            BankAccount from = require(fromAcc);
+            BankAccount to = require(toAcc);
+            // both shards' locks, lowest first like every multi-shard locker (see totalBalance)
+            Shard low = shardOf(Math.min(fromAcc, toAcc)), high = shardOf(Math.max(fromAcc, toAcc));
+            if (low.id > high.id) { Shard x = low; low = high; high = x; }
+            long t = System.nanoTime();
+            low.lock.readLock().lock();
+            if (high != low) high.lock.readLock().lock();
+            long locked = Metrics.checkpointAcquired(t);
+            try {
+                BankAccount first = fromAcc <= toAcc ? from : to;
+                BankAccount second = first == from ? to : from;
+                synchronized (first) {
+                    synchronized (second) {
+                        Metrics.monitorAcquired(locked);
+                        if (from != to) to.checkCredit(amount);
+                        long fromBefore = from.getBalance(), toBefore = to.getBalance();
+                        long ts = from.transferOut(amount, toAcc);
+                        to.apply(ts, Transaction.Type.TRANSFER_IN, amount, fromAcc);
+                        lookup.balanceChanged(fromAcc, fromBefore, from.getBalance());
+                        lookup.balanceChanged(toAcc, toBefore, to.getBalance());
+                        return log(Journal.TRANSFER, ts, fromAcc, toAcc, amount, null);
+                    }
+                }
+            } finally {
+                if (high != low) high.lock.readLock().unlock();
+                low.lock.readLock().unlock();
+                Metrics.TRANSFER.since(start);
+            }
+        }
+
+        /** One payment of a {@link #transferBatch}, in cents. */
+        static final class Leg {
+            final long from, to, amount;
+
+            Leg(long from, long to, long amount) {
+                this.from = from;
+                this.to = to;
+                this.amount = amount;
+            }
+        }
+
+        /** An account's share of a batch: its legs (negative amounts are payments out) and their sum. */
+        private static final class Net {
+            final BankAccount account;
+            long delta;
+            boolean pays;
+            long[] amounts = new long[2], counterparties = new long[2];
+            int count;
+
+            Net(BankAccount account) { this.account = account; }
+
+            void add(long amount, long counterparty) {
+                if (count == amounts.length) {
+                    amounts = Arrays.copyOf(amounts, 2 * count);
+                    counterparties = Arrays.copyOf(counterparties, 2 * count);
+                }
+                amounts[count] = amount;
+                counterparties[count++] = counterparty;
+                delta += amount; // the caller has checked that this cannot overflow
+            }
+        }
+
+        /**
+         * Books every leg or none, with one journal record and one sync for the whole batch.
+         * Legs are netted per account: each account is checked and updated once, so it may pay
+         * out money it receives in the same batch. A payer must not be frozen; callers are
+         * responsible for authorization.
+         */
+        public void transferBatch(java.util.List<Leg> legs) { commit(applyTransferBatch(legs)); }
+
+        /**
+         * Validates and books a batch; returns the journal position to commit. The shards it
+         * touches are held exclusively (in id order, like {@link #totalBalance}) while it checks
+         * and books, so no other operation sees it half-done.
+         */
+        long applyTransferBatch(java.util.List<Leg> legs) {
+            long start = System.nanoTime();
+            if (legs.isEmpty()) return 0;
+            if (legs.size() > MAX_BATCH_LEGS) throw new IllegalArgumentException("A batch has at most " + MAX_BATCH_LEGS + " legs");
+            Map<Long, Net> nets = new HashMap<>();
+            boolean[] touched = new boolean[shards.length];
+            for (int i = 0; i < legs.size(); i++) {
+                Leg l = legs.get(i);
+                if (l.amount <= 0) throw new IllegalArgumentException("Leg " + (i + 1) + ": amount must be > 0");
+                if (l.from == l.to) throw new IllegalArgumentException("Leg " + (i + 1) + ": cannot transfer to the same account");
+                Net from = nets.get(l.from), to = nets.get(l.to);
+                if (from == null) nets.put(l.from, from = new Net(requireLeg(l.from, i)));
+                if (to == null) nets.put(l.to, to = new Net(requireLeg(l.to, i)));
+                if (from.delta < Long.MIN_VALUE + l.amount) throw new IllegalArgumentException("Leg " + (i + 1) + ": batch total overflows for account " + l.from);
+                if (to.delta > Long.MAX_VALUE - l.amount) throw new IllegalArgumentException("Leg " + (i + 1) + ": batch total overflows for account " + l.to);
+                from.add(-l.amount, l.to);
+                from.pays = true;
+                to.add(l.amount, l.from);
+                touched[shardOf(l.from).id] = touched[shardOf(l.to).id] = true;
+            }
+            long t = System.nanoTime();
+            for (Shard s : shards) if (touched[s.id]) s.lock.writeLock().lock();
+            Metrics.checkpointAcquired(t);
+            try {
+                // nothing else can change these accounts now, so check them all before booking any
+                for (Net n : nets.values()) {
+                    BankAccount a = n.account;
+                    if (n.pays && a.isFrozen()) throw new IllegalStateException("Account " + a.accountNumber + " is frozen");
+                    if (a.balance + n.delta < 0) throw new IllegalArgumentException("Insufficient funds in account " + a.accountNumber);
+                    if (n.delta > 0 && a.balance > Long.MAX_VALUE - n.delta) throw new IllegalArgumentException("Balance limit exceeded for account " + a.accountNumber);
+                }
+                long ts = System.currentTimeMillis();
+                for (Net n : nets.values()) {
+                    long before = n.account.getBalance();
+                    n.account.applyTransfers(ts, n.amounts, n.counterparties, n.count, n.delta);
+                    lookup.balanceChanged(n.account.accountNumber, before, before + n.delta);
+                }
+                return log(Journal.BATCH, ts, legs.get(0).from, 0, legs.size(), Journal.encodeLegs(legs));
+            } finally {
+                for (int i = shards.length - 1; i >= 0; i--) if (touched[i]) shards[i].lock.writeLock().unlock();
+                Metrics.TRANSFER_BATCH.since(start);
+            }
+        }
+
+        private BankAccount requireLeg(long acc, int leg) {
+            BankAccount a = getAccount(acc);
+            if (a == null) throw new IllegalArgumentException("Leg " + (leg + 1) + ": account " + acc + " not found");
+            return a;
+        }
+
+        public void setFrozen(long acc, boolean frozen) {
+            long lsn;
+            Shard shard = shardOf(acc);
+            shard.lock.readLock().lock();
+            try {
+                BankAccount a = require(acc);
+                synchronized (a) {
+                    if (frozen) a.freeze(); else a.unfreeze();
+                    lsn = log(frozen ? Journal.FREEZE : Journal.UNFREEZE, System.currentTimeMillis(), acc, 0, 0, null);
+                }
+            } finally { shard.lock.readLock().unlock(); }
+            commit(lsn);
+        }
+
+        private BankAccount require(long acc) {
+            BankAccount a = getAccount(acc);
+            if (a == null) throw new IllegalArgumentException("Account not found");
+            return a;
+        }
+
+        /** Appends a journal record; callers hold the touched accounts' monitors so records follow apply order. */
+        private long log(byte op, long timestamp, long acc, long counterparty, long amount, byte[] payload) {
+            if (journal == null) return 0;
+            try { return journal.append(op, timestamp, acc, counterparty, amount, payload); }
+            catch (IOException e) { throw new UncheckedIOException("Journal write failed", e); }
+        }
+
+        /** Waits outside every lock so concurrent writers share one fsync. */
+        void commit(long lsn) {
+            if (journal == null || lsn == 0) return;
+            long start = System.nanoTime();
+            try { journal.sync(lsn); }
+            catch (IOException e) { throw new UncheckedIOException("Journal sync failed", e); }
+            finally { Metrics.JOURNAL_SYNC.since(start); }
+        }
+
+        /** Applies a journal record to each side whose shard snapshot does not already include it. */
+        private void replay(Journal.Record r) {
+            long amount = r.amount;
+            boolean pending = r.seq > shardOf(r.account).snapshotSeq;
+            switch (r.op) {
+                case Journal.CREATE:
+                    if (pending) put(new BankAccount(r.owner, r.account, PinHash.parse(r.pinHash), amount, r.timestamp));
+                    nextAccount = Math.max(nextAccount, r.account + 1);
+                    break;
+                case Journal.DEPOSIT:
+                    if (pending) require(r.account).apply(r.timestamp, Transaction.Type.DEPOSIT, amount, 0);
+                    break;
+                case Journal.WITHDRAW:
+                    if (pending) require(r.account).apply(r.timestamp, Transaction.Type.WITHDRAWAL, amount, 0);
+                    break;
+                case Journal.TRANSFER:
+                    if (pending) require(r.account).apply(r.timestamp, Transaction.Type.TRANSFER_OUT, amount, r.counterparty);
+                    if (r.seq > shardOf(r.counterparty).snapshotSeq) require(r.counterparty).apply(r.timestamp, Transaction.Type.TRANSFER_IN, amount, r.account);
+                    break;
+                case Journal.BATCH:
+                    for (int i = 0; i < r.legs.length; i += 3) {
+                        long from = r.legs[i], to = r.legs[i + 1], amt = r.legs[i + 2];
+                        if (r.seq > shardOf(from).snapshotSeq) require(from).apply(r.timestamp, Transaction.Type.TRANSFER_OUT, amt, to);
+                        if (r.seq > shardOf(to).snapshotSeq) require(to).apply(r.timestamp, Transaction.Type.TRANSFER_IN, amt, from);
+                    }
+                    break;
+                case Journal.FREEZE: if (pending) require(r.account).freeze(); break;
+                case Journal.UNFREEZE: if (pending) require(r.account).unfreeze(); break;
+                default: throw new IllegalStateException("Unknown journal op " + r.op);
+            }
+        }
+
+        /** True once enough journal records piled up that a compacting snapshot is worthwhile. */
+        public boolean needsSnapshot() { return pendingRecords() >= SNAPSHOT_INTERVAL; }
+
+        /** Journal records not yet covered by a snapshot. */
+        public int pendingRecords() { return journal == null ? 0 : journal.records(); }
+
+        /**
+         * Writes a full snapshot and drops the journal records it covers. Shards are written in
+         * parallel, each pausing only its own operations while its history is checkpointed and its
+         * cut captured; the snapshot itself is written and synced while they continue. Each shard
+         * file stores the journal sequence it covers, and the manifest at {@code filename} is
+         * replaced only once every shard is on disk, so a crash part-way never replays twice or
+         * loses a record; the journal is truncated up to the earliest shard cut.
+         */
+        public void saveToFile(String filename) throws IOException {
+            synchronized (saveLock) {
+                long start = System.nanoTime();
+                long[] ends = new long[shards.length];
+                int[] records = new int[shards.length];
+                try {
+                    IntStream.range(0, shards.length).parallel().forEach(i -> {
+                        try { saveShard(shards[i], filename, ends, records); }
+                        catch (IOException e) { throw new UncheckedIOException(e); }
+                    });
+                } catch (UncheckedIOException e) { throw e.getCause(); }
+
+                Path tmp = Paths.get(filename + ".tmp");
+                SnapshotFile.writeManifest(tmp, shards.length, SHARD_RANGE, nextAccountNumber());
+                Files.move(tmp, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (legacyHistory != null) legacyHistory.close(); // every shard has copied what it referenced
+                legacyHistory = null;
+                HistoryStore.deleteStale(filename, Long.MAX_VALUE);
+                int earliest = 0;
+                for (int i = 1; i < shards.length; i++) if (ends[i] < ends[earliest]) earliest = i;
+                if (journal != null) journal.discardThrough(ends[earliest], records[earliest]);
+                Metrics.SAVE.since(start);
+            }
+        }
+
+        /** Snapshots one shard to {@code <filename>.shard-N}, noting the journal position its cut covers. */
+        private void saveShard(Shard shard, String filename, long[] ends, int[] records) throws IOException {
+            String file = shard.file(filename);
+            HistoryStore store, previous;
+            SnapshotFile.Cut cut;
+            shard.lock.writeLock().lock();
+            long paused = System.nanoTime();
+            try {
+                if (shard.archive == null) shard.archive = new HistoryArchive(file);
+                else if (!shard.archive.file.equals(file)) shard.archive.moveTo(file);
+                long cutoff = HistoryArchive.cutoff(System.currentTimeMillis());
+                if (shard.archive.due(cutoff)) shard.archive.archive(shard.accounts.values(), cutoff);
+                // move unsaved history into the history file first; the snapshot only references it
+                store = shard.history;
+                boolean rewrite = store == null || !store.dataFile.equals(file) || store.needsCompaction();
+                if (rewrite) store = HistoryStore.create(file, shard.historyGeneration + 1);
+                long live = 0;
+                for (BankAccount a : shard.accounts.values()) {
+                    a.log.checkpoint(store, rewrite);
+                    live += a.log.persistedBytes();
+                }
+                store.liveBytes(live);
+                previous = shard.history;
+                shard.history = store;
+                shard.historyGeneration = store.generation;
+                long seq = 0;
+                if (journal != null) {
+                    synchronized (journal) { // other shards keep appending; read all three at one position
+                        seq = journal.lastSeq();
+                        ends[shard.id] = journal.end();
+                        records[shard.id] = journal.records();
+                    }
+                }
+                cut = SnapshotFile.capture(shard, seq, nextAccountNumber());
+            } finally {
+                shard.lock.writeLock().unlock();
+                Metrics.SAVE_PAUSE.since(paused);
+            }
+
+            store.force();
+            Path tmp = Paths.get(file + ".tmp");
+            SnapshotFile.write(tmp, cut);
+            Metrics.snapshotWritten(Files.size(tmp));
+            Files.move(tmp, Paths.get(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (previous != null && previous != store) previous.close();
+            HistoryStore.deleteStale(file, store.generation);
+        }
+
+        private synchronized long nextAccountNumber() { return nextAccount; }
+
+        /** Syncs and closes the journal and history files; the manager must not be used afterwards. */
+        public void close() throws IOException {
+            synchronized (saveLock) {
+                if (journal != null) journal.close();
+                for (Shard s : shards) if (s.history != null) s.history.close();
+                if (legacyHistory != null) legacyHistory.close();
+            }
+        }
+
+        /**
+         * Loads the last snapshot (if any), then replays the journal written since. Snapshots and
+         * journals from before amounts were kept in cents are converted; an old journal is folded
+         * into a new snapshot straight away so new records never land in an old-format file.
+         */
+        public static AccountManager loadFromFile(String filename) throws IOException, ClassNotFoundException {
+            AccountManager m = load(filename);
+            if (m.journal.upgraded()) m.saveToFile(filename);
+            return m;
+        }
+
+        /**
+         * Opens {@code filename}, first migrating {@code legacyFile} into it if only that exists: the
+         * Java-serialized snapshot and its journal are loaded once and written out as a binary
+         * snapshot, after which the old file is kept as {@code <legacyFile>.migrated}.
+         */
+        public static AccountManager open(String filename, String legacyFile) throws IOException, ClassNotFoundException {
+            Path legacy = Paths.get(legacyFile);
+            if (Files.exists(Paths.get(filename)) || !Files.exists(legacy)) return loadFromFile(filename);
+            AccountManager m = load(legacyFile);
+            Path journal = Paths.get(filename + ".journal");
+            Files.deleteIfExists(journal); // left over from a data file that no longer exists
+            m.saveToFile(filename);        // folds the old journal and copies history into <filename>.hist.1
+            long seq = m.journal.lastSeq();
+            m.journal.close();
+            m.journal = Journal.open(journal, seq, m::replay);
+            Files.move(legacy, Paths.get(legacyFile + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(Paths.get(legacyFile + ".journal"));
+            HistoryStore.deleteStale(legacyFile, Long.MAX_VALUE);
+            return m;
+        }
+
+        /**
+         * Reads a sharded snapshot (every shard in parallel), or a single-file snapshot or
+         * bank_data.ser from before sharding, whose accounts are dealt into shards and whose
+         * history stays where it is until the next save.
+         */
+        private static AccountManager load(String filename) throws IOException, ClassNotFoundException {
+            long start = System.nanoTime();
+            AccountManager m = new AccountManager();
+            Path path = Paths.get(filename);
+            if (Files.exists(path)) Metrics.LOADED_BYTES.add(Files.size(path));
+            if (SnapshotFile.isManifest(path)) {
+                SnapshotFile.Manifest manifest = SnapshotFile.readManifest(path);
+                AccountManager loaded = m = new AccountManager(manifest.shards);
+                m.nextAccount = manifest.nextAccount;
+                try {
+                    IntStream.range(0, manifest.shards).parallel().forEach(i -> {
+                        try { loadShard(loaded.shards[i], filename); }
+                        catch (IOException e) { throw new UncheckedIOException(e); }
+                    });
+                } catch (UncheckedIOException e) { throw e.getCause(); }
+                for (Shard s : m.shards) m.nextAccount = Math.max(m.nextAccount, s.nextAccount);
+            } else if (SnapshotFile.isSnapshot(path)) {
+                Shard old = new Shard(-1);
+                long seq = SnapshotFile.read(path, old);
+                m.nextAccount = old.nextAccount;
+                m.historyGeneration = old.historyGeneration;
+                for (BankAccount a : old.accounts.values()) m.put(a);
+                for (Shard s : m.shards) s.snapshotSeq = seq;
+            } else if (Files.exists(path)) {
+                try (ObjectInputStream in = new LegacySnapshot.Input(new BufferedInputStream(new FileInputStream(filename)))) {
+                    Object o = in.readObject();
+                    m = o instanceof LegacySnapshot.Manager ? LegacySnapshot.upgrade((LegacySnapshot.Manager) o) : (AccountManager) o;
+                    long seq;
+                    try { seq = in.readLong(); } catch (EOFException noJournalSeq) { seq = 0; }
+                    for (Shard s : m.shards) s.snapshotSeq = seq;
+                }
+            }
+            if (m.historyGeneration > 0) {
+                m.legacyHistory = HistoryStore.open(filename, m.historyGeneration);
+                attach(m.legacyHistory, m.listAllAccounts());
+                HistoryStore.deleteStale(filename, m.historyGeneration);
+            }
+            long first = Long.MAX_VALUE, last = 0;
+            for (Shard s : m.shards) {
+                first = Math.min(first, s.snapshotSeq);
+                last = Math.max(last, s.snapshotSeq);
+            }
+            m.journal = Journal.open(Paths.get(filename + ".journal"), first, m::replay);
+            m.journal.advanceTo(last); // new records must sort after every shard's cut
+            m.lookup = SecondaryIndex.build(m.listAllAccounts());
+            Metrics.LOAD.since(start);
+            return m;
+        }
+
+        private static void loadShard(Shard shard, String filename) throws IOException {
+            Path path = Paths.get(shard.file(filename));
+            if (!Files.exists(path)) throw new IOException("Missing shard " + shard.id + " of " + filename + ": " + path);
+            Metrics.LOADED_BYTES.add(Files.size(path));
+            SnapshotFile.read(path, shard);
+            if (shard.historyGeneration > 0) {
+                shard.history = HistoryStore.open(shard.file(filename), shard.historyGeneration);
+                attach(shard.history, shard.accounts.values());
+                HistoryStore.deleteStale(shard.file(filename), shard.historyGeneration);
+            }
+            shard.archive = HistoryArchive.open(shard.file(filename), shard.archiveSegments, shard.accounts);
+        }
+
+        private static void attach(HistoryStore store, Collection<BankAccount> accounts) {
+            long live = 0;
+            for (BankAccount a : accounts) {
+                a.log.attach(store);
+                live += a.log.persistedBytes();
+            }
+            store.liveBytes(live);
+        }
+    }
+
+    /**
+     * Sorted, filtered list of account numbers for paging through the bank (the admin table).
+     * It is built from a point-in-time copy of the sort keys, since sorting on live balances
+     * could see them change mid-sort; rows resolve to live accounts, so values read through it
+     * are current while the order is as of the build plus any accounts refreshed since.
+     */
+    static final class AccountIndex {
+        enum Key { NUMBER, OWNER, BALANCE, FROZEN }
+
+        /** Owner substring (case-insensitive), minimum balance in cents and frozen status; null or MIN_VALUE matches any. */
+        static final class Filter {
+            static final Filter ALL = new Filter(null, Long.MIN_VALUE, null);
+            final String owner;
+            final long minBalance;
+            final Boolean frozen;
+
+            Filter(String owner, long minBalance, Boolean frozen) {
+                this.owner = owner == null || owner.isEmpty() ? null : owner.toLowerCase(Locale.ROOT);
+                this.minBalance = minBalance;
+                this.frozen = frozen;
+            }
+
+            boolean test(Row r) {
+                return (owner == null || r.ownerKey.contains(owner))
+                        && r.balance >= minBalance && (frozen == null || r.frozen == frozen);
+            }
+        }
+
+        /** The fields an account is sorted and filtered on, read at one instant. */
+        static final class Row {
+            final long account, balance;
+            final String ownerKey; // lower-cased owner, for case-insensitive sorting and matching
+            final boolean frozen;
+
+            Row(BankAccount a) {
+                account = a.getAccountNumber();
+                balance = a.getBalance();
+                ownerKey = a.getOwner().toLowerCase(Locale.ROOT);
+                frozen = a.isFrozen();
+            }
+        }
+
+        final Key key;
+        final boolean descending;
+        final Filter filter;
+        private final AccountManager manager;
+        private final Comparator<Row> order;
+        private long[] accounts = new long[16];
+        private Row[] keys = new Row[16]; // what each row was placed with, which keeps the order consistent; null in a fixed list
+        private int size;
+        private boolean listed; // a fixed list (search results): rows are never re-sorted or filtered
+
+        AccountIndex(AccountManager manager, Key key, boolean descending, Filter filter) {
+            this.manager = manager;
+            this.key = key;
+            this.descending = descending;
+            this.filter = filter;
+            Comparator<Row> c;
+            switch (key) {
+                case OWNER: c = Comparator.comparing((Row r) -> r.ownerKey); break;
+                case BALANCE: c = Comparator.comparingLong((Row r) -> r.balance); break;
+                case FROZEN: c = Comparator.comparing((Row r) -> r.frozen); break;
+                default: c = Comparator.comparingLong((Row r) -> r.account);
+            }
+            order = (descending ? c.reversed() : c).thenComparingLong(r -> r.account);
+        }
+
+        static AccountIndex build(AccountManager manager, Key key, boolean descending, Filter filter) {
+            AccountIndex ix = new AccountIndex(manager, key, descending, filter);
+            Row[] rows = manager.listAllAccounts().parallelStream().map(Row::new).filter(filter::test).toArray(Row[]::new);
+            Arrays.parallelSort(rows, ix.order);
+            ix.accounts = new long[Math.max(16, rows.length)];
+            ix.keys = Arrays.copyOf(rows, ix.accounts.length);
+            for (int i = 0; i < rows.length; i++) ix.accounts[i] = rows[i].account;
+            ix.size = rows.length;
+            return ix;
+        }
+
+        /** The given accounts in the given order, such as search results. */
+        static AccountIndex of(AccountManager manager, long[] accounts) {
+            AccountIndex ix = new AccountIndex(manager, Key.NUMBER, false, Filter.ALL);
+            ix.accounts = accounts.length == 0 ? new long[16] : accounts.clone();
+            ix.size = accounts.length;
+            ix.keys = null;
+            ix.listed = true;
+            return ix;
+        }
+
+        int size() { return size; }
+
+        long accountAt(int row) { return accounts[Objects.checkIndex(row, size)]; }
+
+        int indexOf(long account) {
+            for (int i = 0; i < size; i++) if (accounts[i] == account) return i;
+            return -1;
+        }
+
+        /**
+         * Takes the account out and puts it back at its sorted position if it (still) matches the
+         * filter. Returns {old row, new row}, -1 where absent; the new row is counted after the removal.
+         * Rows are ordered by the values they were placed with. The old row is binary-searched
+         * with {@code before}, the values the account had before the change (null for a new
+         * account), then with its current ones; only if neither is what it was placed with
+         * (another change was queued behind this one) does it fall back to a scan. A fixed list
+         * only reports the account's row.
+         */
+        int[] refresh(long account, Row before) {
+            if (listed) {
+                int at = indexOf(account);
+                return new int[]{at, at};
+            }
+            BankAccount a = manager.getAccount(account);
+            Row r = a == null ? null : new Row(a);
+            int old = find(account, before);
+            if (old < 0 && r != null) old = find(account, r); // a new account may already be in a fresh build
+            if (old < 0) old = indexOf(account);
+            if (old >= 0) {
+                System.arraycopy(accounts, old + 1, accounts, old, size - old - 1);
+                System.arraycopy(keys, old + 1, keys, old, size - old - 1);
+                keys[--size] = null;
+            }
+            if (r == null || !filter.test(r)) return new int[]{old, -1};
+            int lo = search(r);
+            if (size == accounts.length) {
+                accounts = Arrays.copyOf(accounts, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            System.arraycopy(accounts, lo, accounts, lo + 1, size - lo);
+            System.arraycopy(keys, lo, keys, lo + 1, size - lo);
+            accounts[lo] = account;
+            keys[lo] = r;
+            size++;
+            return new int[]{old, lo};
+        }
+
+        private int find(long account, Row r) {
+            if (r == null) return -1;
+            int i = search(r);
+            return i < size && accounts[i] == account ? i : -1;
+        }
+
+        /** First row not ordered before {@code r}. */
+        private int search(Row r) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (order.compare(keys[mid], r) < 0) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Secondary indexes over the live accounts, kept in concurrent skip-list maps: owner name (lower
+     * case, so exact and prefix lookups are range scans) and balance. The manager updates an
+     * account's entries while it holds that account's monitor; readers never block and see a
+     * weakly consistent view, in which an account whose balance is changing may briefly be
+     * missing from balance queries. Built from the accounts on load and never persisted.
+     */
+    static final class SecondaryIndex {
+        private static final class Key {
+            final String owner;
+            final long balance, account;
+
+            Key(String owner, long balance, long account) {
+                this.owner = owner;
+                this.balance = balance;
+                this.account = account;
+            }
+        }
+
+        private static final Comparator<Key> BY_OWNER = Comparator.comparing((Key e) -> e.owner).thenComparingLong(e -> e.account);
+        private static final Comparator<Key> BY_BALANCE = Comparator.comparingLong((Key e) -> e.balance).thenComparingLong(e -> e.account);
+        private final ConcurrentSkipListMap<Key, Boolean> byOwner, byBalance;
+
+        SecondaryIndex() {
+            byOwner = new ConcurrentSkipListMap<>(BY_OWNER);
+            byBalance = new ConcurrentSkipListMap<>(BY_BALANCE);
+        }
+
+        /**
+         * Sorts the entries in parallel, then puts them in key order; in-order inserts walk the
+         * same few skip-list nodes each time, so they stay cheap and cache-friendly.
+         */
+        static SecondaryIndex build(Collection<BankAccount> accounts) {
+            BankAccount[] all = accounts.toArray(new BankAccount[0]);
+            Key[] owners = new Key[all.length], balances = new Key[all.length];
+            Arrays.parallelSetAll(owners, i -> new Key(all[i].getOwner().toLowerCase(Locale.ROOT), 0, all[i].getAccountNumber()));
+            Arrays.parallelSetAll(balances, i -> new Key(null, all[i].getBalance(), all[i].getAccountNumber()));
+            Arrays.parallelSort(owners, BY_OWNER);
+            Arrays.parallelSort(balances, BY_BALANCE);
+            SecondaryIndex ix = new SecondaryIndex();
+            for (Key k : owners) ix.byOwner.put(k, Boolean.TRUE);
+            for (Key k : balances) ix.byBalance.put(k, Boolean.TRUE);
+            return ix;
+        }
+
+        void add(BankAccount a) {
+            byOwner.put(new Key(a.getOwner().toLowerCase(Locale.ROOT), 0, a.getAccountNumber()), Boolean.TRUE);
+            byBalance.put(new Key(null, a.getBalance(), a.getAccountNumber()), Boolean.TRUE);
+        }
+
+        void balanceChanged(long account, long from, long to) {
+            if (from == to) return;
+            byBalance.remove(new Key(null, from, account));
+            byBalance.put(new Key(null, to, account), Boolean.TRUE);
+        }
+
+        /** Accounts whose owner equals {@code owner}, ignoring case, by account number. */
+        long[] ownerEquals(String owner, int limit) {
+            String key = owner.toLowerCase(Locale.ROOT);
+            return collect(byOwner.tailMap(new Key(key, 0, Long.MIN_VALUE)).keySet(), e -> e.owner.equals(key), limit);
+        }
+
+        /** Accounts whose owner starts with {@code prefix}, ignoring case, by owner then account number. */
+        long[] ownerStartsWith(String prefix, int limit) {
+            String key = prefix.toLowerCase(Locale.ROOT);
+            return collect(byOwner.tailMap(new Key(key, 0, Long.MIN_VALUE)).keySet(), e -> e.owner.startsWith(key), limit);
+        }
+
+        /** The {@code n} largest balances, largest first. */
+        long[] topBalances(int n) { return collect(byBalance.descendingKeySet(), e -> true, n); }
+
+        /** Accounts with {@code min <= balance <= max}, smallest first. */
+        long[] balanceBetween(long min, long max, int limit) {
+            if (min > max) return new long[0];
+            return collect(byBalance.subMap(new Key(null, min, Long.MIN_VALUE), true, new Key(null, max, Long.MAX_VALUE), true).keySet(), e -> true, limit);
+        }
+
+        /** Account numbers from the front of {@code entries} while {@code match} holds, up to {@code limit}. */
+        private static long[] collect(NavigableSet<Key> entries, java.util.function.Predicate<Key> match, int limit) {
+            long[] out = new long[Math.min(Math.max(limit, 0), 1024)];
+            int n = 0;
+            for (Iterator<Key> it = entries.iterator(); n < limit && it.hasNext(); ) {
+                Key e = it.next();
+                if (!match.test(e)) break;
+                if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                out[n++] = e.account;
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+
+    // ----------------- Headless service -----------------
+
+    /**
+     * Headless front end over AccountManager for scripted and bulk use. Commands are routed to
+     * single-threaded lanes by account number, so each account sees its commands in submission
+     * order while different accounts run in parallel. A lane applies everything it has queued,
+     * then makes the whole group durable with one journal sync before completing the results.
+     * Commands are trusted: there is no PIN check, as with the admin tab.
+     */
+    static class BankService implements Closeable {
+        enum Op {DEPOSIT, WITHDRAW, TRANSFER}
+        private static final int MAX_GROUP = 4096;
+        private static final int QUEUE_CAPACITY = 65536;
+
+        static final class Command {
+            final Op op;
+            final long account;
+            final long target;
+            final long amount; // cents
+
+            Command(Op op, long account, long target, long amount) {
+                this.op = op;
+                this.account = account;
+                this.target = target;
+                this.amount = amount;
+            }
+
+            static Command deposit(long acc, long amount) { return new Command(Op.DEPOSIT, acc, 0, amount); }
+            static Command withdraw(long acc, long amount) { return new Command(Op.WITHDRAW, acc, 0, amount); }
+            static Command transfer(long from, long to, long amount) { return new Command(Op.TRANSFER, from, to, amount); }
+
+            /** Parses "DEPOSIT acct amount", "WITHDRAW acct amount" or "TRANSFER from to amount". */
+            static Command parse(String line) {
+                String[] f = line.trim().split("\\s+");
+                Op op;
+                try { op = Op.valueOf(f[0].toUpperCase()); }
+                catch (IllegalArgumentException e) { throw new IllegalArgumentException("Unknown command: " + f[0]); }
+                if (f.length != (op == Op.TRANSFER ? 4 : 3)) throw new IllegalArgumentException("Malformed command: " + line);
+                if (op == Op.TRANSFER) return transfer(Long.parseLong(f[1]), Long.parseLong(f[2]), Money.parse(f[3]));
+                return new Command(op, Long.parseLong(f[1]), 0, Money.parse(f[2]));
+            }
+
+            public String toString() {
+                StringBuilder sb = new StringBuilder(48).append(op).append(' ').append(account).append(' ');
+                if (op == Op.TRANSFER) sb.append(target).append(' ');
+                return Money.appendTo(sb, amount).toString();
+            }
+        }
+
+        static final class Result {
+            final Command command;
+            final boolean ok;
+            final String message;
+
+            Result(Command command, boolean ok, String message) {
+                this.command = command;
+                this.ok = ok;
+                this.message = message;
+            }
+
+            public String toString() { return (ok ? "OK    " : "FAILED") + (command == null ? "" : " " + command) + (message == null ? "" : " - " + message); }
+        }
+
+        private static final class Pending {
+            final Command command;
+            final CompletableFuture<Result> result = new CompletableFuture<>();
+            Pending(Command command) { this.command = command; }
+        }
+
+        private static final Pending STOP = new Pending(null);
+
+        private final AccountManager manager;
+        private final Lane[] lanes;
+        private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock(); // submits share it, close takes it alone
+        private boolean closed;
+
+        BankService(AccountManager manager, int laneCount) {
+            this.manager = manager;
+            this.lanes = new Lane[laneCount];
+            for (int i = 0; i < laneCount; i++) lanes[i] = new Lane(i);
+        }
+
+        /**
+         * Queues a command; blocks only when its lane is backed up.
+         * @throws RejectedExecutionException once the service is closed
+         */
+        CompletableFuture<Result> submit(Command c) {
+            Pending p = new Pending(c);
+            closing.readLock().lock();
+            try {
+                if (closed) throw new RejectedExecutionException("The service is closed");
+                lanes[(int) Math.floorMod(c.account, (long) lanes.length)].queue.put(p);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                p.result.complete(new Result(c, false, "Interrupted"));
+            } finally { closing.readLock().unlock(); }
+            return p.result;
+        }
+
+        /** Runs a batch and returns one result per command, in input order. */
+        List<Result> execute(List<Command> batch) {
+            List<CompletableFuture<Result>> futures = new ArrayList<>(batch.size());
+            for (Command c : batch) futures.add(submit(c));
+            List<Result> results = new ArrayList<>(batch.size());
+            for (CompletableFuture<Result> f : futures) results.add(f.join());
+            return results;
+        }
+
+        private long apply(Command c) {
+            switch (c.op) {
+                case DEPOSIT: return manager.applyDeposit(c.account, c.amount);
+                case WITHDRAW: return manager.applyWithdraw(c.account, c.amount);
+                default: return manager.applyTransfer(c.account, c.target, c.amount);
+            }
+        }
+
+        private final class Lane implements Runnable {
+            final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            final Thread thread;
+
+            Lane(int id) {
+                thread = new Thread(this, "bank-lane-" + id);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            public void run() {
+                List<Pending> group = new ArrayList<>(MAX_GROUP);
+                Result[] results = new Result[MAX_GROUP];
+                try {
+                    boolean stop = false;
+                    while (!stop) {
+                        group.add(queue.take());
+                        queue.drainTo(group, MAX_GROUP - 1);
+                        long lsn = 0;
+                        for (int i = 0; i < group.size(); i++) {
+                            Pending p = group.get(i);
+                            if (p == STOP) { stop = true; continue; }
+                            try { lsn = Math.max(lsn, apply(p.command)); results[i] = new Result(p.command, true, null); }
+                            catch (RuntimeException e) { results[i] = new Result(p.command, false, e.getMessage()); }
+                        }
+                        String syncError = null;
+                        try { manager.commit(lsn); } catch (UncheckedIOException e) { syncError = e.getMessage(); }
+                        for (int i = 0; i < group.size(); i++) {
+                            Pending p = group.get(i);
+                            if (p == STOP) continue;
+                            Result r = results[i];
+                            if (syncError != null && r.ok) r = new Result(p.command, false, syncError);
+                            p.result.complete(r);
+                            results[i] = null;
+                        }
+                        group.clear();
+                    }
+                } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }
+
+        /** Refuses new commands, drains every lane and stops its thread. */
+        @Override
+        public void close() {
+            closing.writeLock().lock();
+            try {
+                if (closed) return;
+                closed = true;
+                for (Lane l : lanes) {
+                    try { l.queue.put(STOP); } catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+                }
+            } finally { closing.writeLock().unlock(); }
+            for (Lane l : lanes) {
+                try { l.thread.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+            }
+        }
+
+        /** Entry point for {@code --batch file [--lanes N] [--data file]}; prints one result per command. */
+        static void runBatch(String[] args) throws Exception {
+            String input = null, data = DATA_FILE;
+            int laneCount = Runtime.getRuntime().availableProcessors();
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--lanes")) laneCount = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--data")) data = args[++i];
+                else input = args[i];
+            }
+            if (input == null) { System.err.println("usage: --batch <commands file> [--lanes N] [--data file]"); return; }
+
+            long ok = 0, failed = 0, start = System.nanoTime();
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+            try (AccountManager manager = data.equals(DATA_FILE) ? AccountManager.open(data, LEGACY_DATA_FILE) : AccountManager.loadFromFile(data)) {
+                Metrics.watch(manager);
+                try (BankService service = new BankService(manager, laneCount);
+                     BufferedReader in = new BufferedReader(new FileReader(input))) {
+                    // a bounded window of in-flight results keeps output ordered and memory flat
+                    ArrayDeque<CompletableFuture<Result>> window = new ArrayDeque<>();
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (line.isBlank() || line.startsWith("#")) continue;
+                        CompletableFuture<Result> f;
+                        try { f = service.submit(Command.parse(line)); }
+                        catch (RuntimeException e) { f = CompletableFuture.completedFuture(new Result(null, false, "Bad line '" + line + "': " + e.getMessage())); }
+                        window.add(f);
+                        while (window.size() > QUEUE_CAPACITY || (!window.isEmpty() && window.peek().isDone())) {
+                            Result r = window.poll().join();
+                            if (r.ok) ok++; else failed++;
+                            out.println(r);
+                        }
+                    }
+                    while (!window.isEmpty()) {
+                        Result r = window.poll().join();
+                        if (r.ok) ok++; else failed++;
+                        out.println(r);
+                    }
+                }
+                double secs = (System.nanoTime() - start) / 1e9;
+                out.printf("%d ok, %d failed in %.3fs (%.0f ops/s)%n", ok, failed, secs, (ok + failed) / Math.max(secs, 1e-9));
+                out.flush();
+                if (manager.needsSnapshot()) manager.saveToFile(data);
+                if (Metrics.DUMP_SECONDS > 0) Metrics.dumpQuietly();
+            }
+        }
+    }
+
+    // ----------------- Network server -----------------
+
+    /**
+     * The binary protocol shared by {@link BankServer} and {@link BankClient}, and the selector
+     * loop both ends run on. Frames are length-prefixed and big-endian:
+     * {@code int length} (of what follows), then
+     *  - request: {@code byte op, int id, body}
+     *  - response: {@code byte status (OK or FAILED), int id, body}; a failure's body is the UTF-8 message.
+     * Requests may be pipelined. Each response carries the id of its request; responses to one
+     * connection come back in request order, except that HISTORY and BALANCE can overtake
+     * pending money operations. Strings are {@code short length} followed by UTF-8 bytes.
+     *
+     * Ops (request body -> OK body):
+     *  - CREATE   long initial cents, string owner, string pin -> long account
+     *  - LOGIN    long account, string pin -> long balance
+     *  - LOGOUT   - -> -
+     *  - BALANCE  - -> long balance
+     *  - DEPOSIT  long cents -> -
+     *  - WITHDRAW long cents -> -
+     *  - TRANSFER long to account, long cents -> -
+     *  - HISTORY  int offset, int limit -> int n, n x (long time, byte type, long cents, long counterparty), newest first
+     * BALANCE, DEPOSIT, WITHDRAW, TRANSFER and HISTORY act on the account logged in on the connection.
+     */
+    static final class Wire {
+        static final byte CREATE = 1, LOGIN = 2, LOGOUT = 3, BALANCE = 4, DEPOSIT = 5, WITHDRAW = 6, TRANSFER = 7, HISTORY = 8;
+        static final byte OK = 0, FAILED = 1;
+        static final int MAX_REQUEST = 4096;
+        static final int MAX_RESPONSE = 1 << 20;
+        static final int MAX_HISTORY = 1000;      // entries per HISTORY response
+        static final int HIGH_WATER = 1 << 20;    // unsent bytes at which a connection stops reading
+        static final byte OPENING = 0x10;         // history type flag: the account's initial deposit
+
+        private Wire() {}
+
+        /** A frame with room for {@code body} bytes; the length and header are filled in. */
+        static ByteBuffer frame(byte opOrStatus, int id, int body) {
+            return ByteBuffer.allocate(9 + body).putInt(5 + body).put(opOrStatus).putInt(id);
+        }
+
+        static ByteBuffer putString(ByteBuffer b, byte[] utf8) { return b.putShort((short) utf8.length).put(utf8); }
+
+        static String getString(ByteBuffer b) {
+            int n = b.getShort() & 0xFFFF;
+            String s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+            b.position(b.position() + n);
+            return s;
+        }
+
+        static byte[] utf8(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            if (b.length > 0xFFFF) throw new IllegalArgumentException("String too long");
+            return b;
+        }
+
+        interface Handler { void ready(SelectionKey key) throws IOException; }
+
+        /**
+         * One selector thread. Work from other threads is queued with {@link #execute}; endpoints
+         * that were sent something on this thread are flushed once per turn of the loop, so
+         * replies to a pipelined burst leave in one write.
+         */
+        static final class Loop implements Runnable, Closeable {
+            final Selector selector;
+            private final Queue<Runnable> tasks = new java.util.concurrent.ConcurrentLinkedQueue<>();
+            private final java.util.List<Endpoint> dirty = new ArrayList<>();
+            private final Thread thread;
+            private volatile boolean closed;
+
+            Loop(String name) throws IOException {
+                selector = Selector.open();
+                thread = new Thread(this, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            boolean inLoop() { return Thread.currentThread() == thread; }
+
+            void execute(Runnable task) {
+                tasks.add(task);
+                selector.wakeup();
+            }
+
+            private void flushSoon(Endpoint e) {
+                if (inLoop()) dirty.add(e);
+                else execute(e::flush);
+            }
+
+            public void run() {
+                while (!closed) {
+                    try {
+                        selector.select();
+                        for (Runnable r; (r = tasks.poll()) != null; ) r.run();
+                        for (SelectionKey k : selector.selectedKeys()) {
+                            try {
+                                if (k.isValid()) ((Handler) k.attachment()).ready(k);
+                            } catch (IOException | RuntimeException e) {
+                                if (k.attachment() instanceof Endpoint) ((Endpoint) k.attachment()).close();
+                                else System.err.println(thread.getName() + ": " + e);
+                            }
+                        }
+                        selector.selectedKeys().clear();
+                        for (int i = 0; i < dirty.size(); i++) dirty.get(i).flush();
+                        dirty.clear();
+                    } catch (IOException | RuntimeException e) {
+                        if (!closed) System.err.println(thread.getName() + ": " + e);
+                    }
+                }
+                for (SelectionKey k : selector.keys()) {
+                    if (k.attachment() instanceof Endpoint) ((Endpoint) k.attachment()).close();
+                    else try { k.channel().close(); } catch (IOException ignored) {}
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+
+            @Override public void close() {
+                closed = true;
+                selector.wakeup();
+                try { thread.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }
+
+        /**
+         * A connection on a loop: reads whole frames and hands them to {@link #frame} on the loop
+         * thread; {@link #send} may be called from any thread. A peer that stops reading its
+         * responses is stopped from sending more requests once {@link #HIGH_WATER} bytes back up.
+         */
+        abstract static class Endpoint implements Handler {
+            final Loop loop;
+            final SocketChannel channel;
+            private final int maxFrame;
+            private SelectionKey key;
+            private ByteBuffer in = ByteBuffer.allocate(256);
+            private ByteBuffer out = ByteBuffer.allocate(256); // guarded by this
+            private boolean flushing;                           // guarded by this; a flush is scheduled or registered
+            private volatile boolean closed;
+
+            Endpoint(Loop loop, SocketChannel channel, int maxFrame) {
+                this.loop = loop;
+                this.channel = channel;
+                this.maxFrame = maxFrame;
+            }
+
+            /** Registers with the loop; call once, from any thread. */
+            void start() {
+                loop.execute(() -> {
+                    try {
+                        channel.configureBlocking(false);
+                        key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                    } catch (IOException e) { close(); }
+                });
+            }
+
+            /** Handles one frame (length prefix removed); {@code f} is only valid during the call. */
+            abstract void frame(ByteBuffer f);
+
+            /** Called once, on the loop thread or the closing thread. */
+            void closed() {}
+
+            @Override public void ready(SelectionKey k) throws IOException {
+                if (k.isWritable()) flush();
+                if (k.isValid() && k.isReadable()) read();
+            }
+
+            private void read() throws IOException {
+                if (channel.read(in) < 0) { close(); return; }
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int len = in.getInt(in.position());
+                    if (len < 5 || len > maxFrame) throw new IOException("Bad frame length " + len);
+                    if (in.remaining() < 4 + len) break;
+                    int start = in.position() + 4;
+                    ByteBuffer f = in.duplicate();
+                    f.position(start).limit(start + len);
+                    in.position(start + len);
+                    frame(f.slice());
+                    if (closed) return;
+                }
+                in.compact();
+                if (in.position() >= 4 && in.capacity() < 4 + in.getInt(0)) {
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + in.getInt(0));
+                    in.flip();
+                    in = bigger.put(in);
+                }
+            }
+
+            void send(ByteBuffer frame) {
+                frame.flip();
+                boolean schedule;
+                synchronized (this) {
+                    if (closed) return;
+                    if (out.remaining() < frame.remaining()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * out.capacity(), out.position() + frame.remaining()));
+                        out.flip();
+                        out = bigger.put(out);
+                    }
+                    out.put(frame);
+                    schedule = !flushing;
+                    flushing = true;
+                }
+                if (schedule) loop.flushSoon(this);
+            }
+
+            /** Writes what the socket takes; on the loop thread. */
+            synchronized void flush() {
+                if (closed || key == null) return;
+                try {
+                    out.flip();
+                    channel.write(out);
+                    out.compact();
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (out.position() == 0) {
+                    flushing = false;
+                    if (out.capacity() > 64 * 1024) out = ByteBuffer.allocate(256);
+                }
+                if (key.isValid()) key.interestOps((out.position() < HIGH_WATER ? SelectionKey.OP_READ : 0) | (flushing ? SelectionKey.OP_WRITE : 0));
+            }
+
+            void close() {
+                synchronized (this) {
+                    if (closed) return;
+                    closed = true;
+                }
+                try { channel.close(); } catch (IOException ignored) {}
+                closed();
+            }
+
+            boolean isClosed() { return closed; }
+        }
+    }
+
+    /**
+     * Loopback TCP server in front of an {@link AccountManager}, speaking the {@link Wire} protocol.
+     * A few selector loops serve every connection, so tens of thousands of mostly idle teller
+     * terminals cost a buffer each rather than a thread each. Deposits, withdrawals and transfers
+     * go through a {@link BankService}, so requests from many connections share journal syncs;
+     * CREATE and LOGIN, which hash a PIN (and CREATE syncs the journal), run on a small worker
+     * pool. HISTORY and BALANCE are answered on the loop. A connection logs in once; its money
+     * operations then act on that account and renew the session. A backed-up lane holds up the
+     * loop that submits to it, which in turn stops reading from its clients.
+     */
+    static final class BankServer implements Closeable {
+        private final AccountManager manager;
+        private final BankService service;
+        private final ServerSocketChannel server;
+        private final Wire.Loop[] loops;
+        private final java.util.concurrent.ExecutorService workers;
+        private final java.util.concurrent.atomic.AtomicInteger connections = new java.util.concurrent.atomic.AtomicInteger();
+        private int nextLoop;
+
+        /** Listens on 127.0.0.1:{@code port} (0 picks a free port) with {@code loopCount} selector threads. */
+        BankServer(AccountManager manager, int port, int loopCount) throws IOException {
+            this.manager = manager;
+            int cpus = Runtime.getRuntime().availableProcessors();
+            service = new BankService(manager, cpus);
+            java.util.concurrent.atomic.AtomicInteger n = new java.util.concurrent.atomic.AtomicInteger();
+            workers = Executors.newFixedThreadPool(Math.max(2, cpus), r -> {
+                Thread t = new Thread(r, "bank-server-worker-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            loops = new Wire.Loop[Math.max(1, loopCount)];
+            for (int i = 0; i < loops.length; i++) loops[i] = new Wire.Loop("bank-server-" + i);
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+            server.configureBlocking(false);
+            loops[0].execute(() -> {
+                try { server.register(loops[0].selector, SelectionKey.OP_ACCEPT, (Wire.Handler) k -> accept()); }
+                catch (IOException e) { System.err.println("Server not accepting: " + e); }
+            });
+        }
+
+        int port() throws IOException { return ((InetSocketAddress) server.getLocalAddress()).getPort(); }
+
+        int connections() { return connections.get(); }
+
+        private void accept() throws IOException {
+            for (SocketChannel c; (c = server.accept()) != null; ) {
+                c.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.incrementAndGet();
+                new Connection(loops[nextLoop++ % loops.length], c).start();
+            }
+        }
+
+        /** Stops accepting, closes every connection and waits for queued operations to finish. */
+        @Override public void close() throws IOException {
+            server.close();
+            for (Wire.Loop l : loops) l.close();
+            workers.shutdown();
+            try { workers.awaitTermination(10, TimeUnit.SECONDS); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            service.close();
+        }
+
+        private final class Connection extends Wire.Endpoint {
+            private String session;
+            private ArrayDeque<ByteBuffer> parked; // frames received while CREATE or LOGIN runs off the loop
+
+            Connection(Wire.Loop loop, SocketChannel channel) { super(loop, channel, Wire.MAX_REQUEST); }
+
+            @Override void frame(ByteBuffer f) {
+                if (parked != null) { parked.add(ByteBuffer.allocate(f.remaining()).put(f).flip()); return; }
+                byte op = f.get();
+                int id = f.getInt();
+                try {
+                    handle(op, id, f);
+                } catch (RuntimeException e) {
+                    fail(id, e);
+                }
+            }
+
+            private void handle(byte op, int id, ByteBuffer f) {
+                switch (op) {
+                    case Wire.CREATE: {
+                        long initial = f.getLong();
+                        String owner = Wire.getString(f), pin = Wire.getString(f);
+                        offload(id, () -> manager.createAccount(owner, pin, initial).getAccountNumber(), acc -> send(Wire.frame(Wire.OK, id, 8).putLong(acc)));
+                        break;
+                    }
+                    case Wire.LOGIN: {
+                        long acc = f.getLong();
+                        String pin = Wire.getString(f);
+                        offload(id, () -> manager.login(acc, pin), token -> {
+                            manager.logout(session);
+                            session = token;
+                            send(Wire.frame(Wire.OK, id, 8).putLong(manager.getAccount(acc).getBalance()));
+                        });
+                        break;
+                    }
+                    case Wire.LOGOUT:
+                        manager.logout(session);
+                        session = null;
+                        send(Wire.frame(Wire.OK, id, 0));
+                        break;
+                    case Wire.BALANCE:
+                        send(Wire.frame(Wire.OK, id, 8).putLong(manager.getAccount(manager.sessionAccount(session)).getBalance()));
+                        break;
+                    case Wire.DEPOSIT: submit(id, BankService.Command.deposit(manager.sessionAccount(session), f.getLong())); break;
+                    case Wire.WITHDRAW: submit(id, BankService.Command.withdraw(manager.sessionAccount(session), f.getLong())); break;
+                    case Wire.TRANSFER: {
+                        long from = manager.sessionAccount(session), to = f.getLong();
+                        submit(id, BankService.Command.transfer(from, to, f.getLong()));
+                        break;
+                    }
+                    case Wire.HISTORY: {
+                        BankAccount a = manager.getAccount(manager.sessionAccount(session));
+                        int offset = f.getInt(), limit = Math.min(f.getInt(), Wire.MAX_HISTORY);
+                        java.util.List<Transaction> page = a.getTransactions(Math.max(0, offset), Math.max(0, limit));
+                        ByteBuffer b = Wire.frame(Wire.OK, id, 4 + 25 * page.size()).putInt(page.size());
+                        for (Transaction t : page) {
+                            b.putLong(t.getTimestamp()).put((byte) (t.getType().ordinal() | (t.opening ? Wire.OPENING : 0)))
+                             .putLong(t.getAmount()).putLong(t.getCounterparty());
+                        }
+                        send(b);
+                        break;
+                    }
+                    default: throw new IllegalArgumentException("Unknown op " + op);
+                }
+            }
+
+            private void submit(int id, BankService.Command c) {
+                service.submit(c).thenAccept(r -> {
+                    if (r.ok) send(Wire.frame(Wire.OK, id, 0));
+                    else fail(id, r.message);
+                });
+            }
+
+            /**
+             * Runs {@code work} on the worker pool and {@code done} back on the loop. Frames that
+             * arrive meanwhile are parked and handled afterwards, so they still see the result.
+             */
+            private <T> void offload(int id, java.util.concurrent.Callable<T> work, java.util.function.Consumer<T> done) {
+                parked = new ArrayDeque<>();
+                workers.execute(() -> {
+                    T result = null;
+                    RuntimeException error = null;
+                    try { result = work.call(); }
+                    catch (RuntimeException e) { error = e; }
+                    catch (Exception e) { error = new IllegalStateException(e); }
+                    T r = result;
+                    RuntimeException err = error;
+                    loop.execute(() -> {
+                        ArrayDeque<ByteBuffer> waiting = parked;
+                        parked = null;
+                        if (err == null) done.accept(r);
+                        else fail(id, err);
+                        while (!waiting.isEmpty() && parked == null && !isClosed()) frame(waiting.poll());
+                        if (parked != null) parked.addAll(waiting); // another CREATE or LOGIN; the rest wait for it
+                    });
+                });
+            }
+
+            private void fail(int id, RuntimeException e) { fail(id, e.getMessage() == null ? e.toString() : e.getMessage()); }
+
+            private void fail(int id, String message) {
+                byte[] m = message.getBytes(StandardCharsets.UTF_8);
+                send(Wire.frame(Wire.FAILED, id, m.length).put(m));
+            }
+
+            @Override void closed() {
+                connections.decrementAndGet();
+                manager.logout(session);
+            }
+        }
+
+        /** Entry point for {@code --serve [--port N] [--loops N] [--data file]}; runs until killed, then saves. */
+        static void run(String[] args) throws Exception {
+            int port = 7070, loopCount = Runtime.getRuntime().availableProcessors();
+            String data = DATA_FILE;
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port": port = Integer.parseInt(args[++i]); break;
+                    case "--loops": loopCount = Integer.parseInt(args[++i]); break;
+                    case "--data": data = args[++i]; break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            AccountManager manager = data.equals(DATA_FILE) ? AccountManager.open(data, LEGACY_DATA_FILE) : AccountManager.loadFromFile(data);
+            Metrics.watch(manager);
+            SnapshotScheduler persistence = new SnapshotScheduler(manager, data, SnapshotScheduler.INTERVAL_SECONDS, SnapshotScheduler.THRESHOLD, System.err::println);
+            BankServer server = new BankServer(manager, port, loopCount);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    persistence.shutdown().join();
+                    manager.close();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Final save failed (operations are in the journal): " + e);
+                }
+                if (Metrics.DUMP_SECONDS > 0) Metrics.dumpQuietly();
+            }, "bank-server-shutdown"));
+            System.err.println("Listening on 127.0.0.1:" + server.port());
+            Thread.currentThread().join();
+        }
+    }
+
+    /**
+     * Client for {@link BankServer}. Every call sends one request and returns a future completed
+     * with its response, so callers can pipeline; a FAILED response completes it exceptionally
+     * with {@link Rejected}. Clients share the selector threads of a {@link Group}, which is what
+     * lets one process hold many thousands of connections.
+     */
+    static final class BankClient implements Closeable {
+        /** The server turned a request down; the message is the server's. */
+        static final class Rejected extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+            Rejected(String message) { super(message); }
+        }
+
+        /** Selector threads shared by many clients. */
+        static final class Group implements Closeable {
+            private final Wire.Loop[] loops;
+            private int next;
+
+            Group(int loopCount) throws IOException {
+                loops = new Wire.Loop[Math.max(1, loopCount)];
+                for (int i = 0; i < loops.length; i++) loops[i] = new Wire.Loop("bank-client-" + i);
+            }
+
+            synchronized BankClient connect(int port) throws IOException {
+                SocketChannel c = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                c.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                return new BankClient(loops[next++ % loops.length], c);
+            }
+
+            @Override public void close() { for (Wire.Loop l : loops) l.close(); }
+        }
+
+        private final Wire.Endpoint endpoint;
+        private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+        private final java.util.concurrent.atomic.AtomicInteger ids = new java.util.concurrent.atomic.AtomicInteger();
+
+        private BankClient(Wire.Loop loop, SocketChannel channel) {
+            endpoint = new Wire.Endpoint(loop, channel, Wire.MAX_RESPONSE) {
+                @Override void frame(ByteBuffer f) {
+                    byte status = f.get();
+                    CompletableFuture<ByteBuffer> p = pending.remove(f.getInt());
+                    if (p == null) return;
+                    if (status == Wire.OK) p.complete(ByteBuffer.allocate(f.remaining()).put(f).flip());
+                    else p.completeExceptionally(new Rejected(StandardCharsets.UTF_8.decode(f).toString()));
+                }
+
+                @Override void closed() {
+                    IOException gone = new IOException("Connection closed");
+                    for (Integer id : pending.keySet()) {
+                        CompletableFuture<ByteBuffer> p = pending.remove(id);
+                        if (p != null) p.completeExceptionally(gone);
+                    }
+                }
+            };
+            endpoint.start();
+        }
+
+        CompletableFuture<Long> create(String owner, String pin, long initialCents) {
+            byte[] o = Wire.utf8(owner), p = Wire.utf8(pin);
+            return request(Wire.CREATE, 8 + 2 + o.length + 2 + p.length, b -> Wire.putString(Wire.putString(b.putLong(initialCents), o), p)).thenApply(ByteBuffer::getLong);
+        }
+
+        /** Completes with the account's balance in cents. */
+        CompletableFuture<Long> login(long account, String pin) {
+            byte[] p = Wire.utf8(pin);
+            return request(Wire.LOGIN, 8 + 2 + p.length, b -> Wire.putString(b.putLong(account), p)).thenApply(ByteBuffer::getLong);
+        }
+
+        CompletableFuture<Void> logout() { return request(Wire.LOGOUT, 0, b -> b).thenApply(r -> null); }
+
+        CompletableFuture<Long> balance() { return request(Wire.BALANCE, 0, b -> b).thenApply(ByteBuffer::getLong); }
+
+        CompletableFuture<Void> deposit(long cents) { return request(Wire.DEPOSIT, 8, b -> b.putLong(cents)).thenApply(r -> null); }
+
+        CompletableFuture<Void> withdraw(long cents) { return request(Wire.WITHDRAW, 8, b -> b.putLong(cents)).thenApply(r -> null); }
+
+        CompletableFuture<Void> transfer(long to, long cents) { return request(Wire.TRANSFER, 16, b -> b.putLong(to).putLong(cents)).thenApply(r -> null); }
+
+        /** Entries [offset, offset + limit) of the history, newest first (at most {@link Wire#MAX_HISTORY}). */
+        CompletableFuture<java.util.List<Transaction>> history(int offset, int limit) {
+            return request(Wire.HISTORY, 8, b -> b.putInt(offset).putInt(limit)).thenApply(r -> {
+                Transaction[] page = new Transaction[r.getInt()];
+                for (int i = 0; i < page.length; i++) {
+                    long time = r.getLong();
+                    byte type = r.get();
+                    page[i] = new Transaction(time, Transaction.Type.values()[type & 0x0F], r.getLong(), r.getLong(), (type & Wire.OPENING) != 0);
+                }
+                return Arrays.asList(page);
+            });
+        }
+
+        private CompletableFuture<ByteBuffer> request(byte op, int body, java.util.function.UnaryOperator<ByteBuffer> fill) {
+            int id = ids.incrementAndGet();
+            CompletableFuture<ByteBuffer> p = new CompletableFuture<>();
+            pending.put(id, p);
+            endpoint.send(fill.apply(Wire.frame(op, id, body)));
+            if (endpoint.isClosed() && pending.remove(id) != null) p.completeExceptionally(new IOException("Connection closed"));
+            return p;
+        }
+
+        @Override public void close() { endpoint.close(); }
+
+        /**
+         * Entry point for {@code --stress}. Opens {@code --connections} clients at once, each of
+         * which creates an account, logs in, then keeps {@code --pipeline} requests in flight
+         * (deposits, withdrawals, transfers to other stress accounts, balance and history reads)
+         * until it has made {@code --requests}. Reports throughput, latency percentiles and
+         * whether the stress accounts' final balances add up. Without {@code --port} it starts
+         * an in-memory server in the same process, which halves the connections a file-descriptor
+         * limit allows, and checks that the server held every connection at once. Exits with
+         * status 1 if a check fails.
+         */
+        static void stress(String[] args) throws Exception {
+            int port = 0, connections = 1000, requests = 100, depth = 4, loopCount = Runtime.getRuntime().availableProcessors();
+            long seed = 42;
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port": port = Integer.parseInt(args[++i]); break;
+                    case "--connections": connections = Integer.parseInt(args[++i]); break;
+                    case "--requests": requests = Integer.parseInt(args[++i]); break;
+                    case "--pipeline": depth = Integer.parseInt(args[++i]); break;
+                    case "--loops": loopCount = Integer.parseInt(args[++i]); break;
+                    case "--seed": seed = Long.parseLong(args[++i]); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            BankServer local = port == 0 ? new BankServer(new AccountManager(), 0, loopCount) : null;
+            if (local != null) port = local.port();
+            long initial = Money.parse("1000");
+            Metrics.Histogram latency = new Metrics.Histogram("request");
+            LongAdder ok = new LongAdder(), rejected = new LongAdder(), deposited = new LongAdder(), withdrawn = new LongAdder();
+            boolean clean;
+            try (Group group = new Group(loopCount)) {
+                long t0 = System.nanoTime();
+                BankClient[] clients = new BankClient[connections];
+                long[] accounts = new long[connections];
+                CompletableFuture<?>[] ready = new CompletableFuture<?>[connections];
+                for (int c = 0; c < connections; c++) {
+                    BankClient client = clients[c] = group.connect(port);
+                    int cc = c;
+                    ready[c] = client.create("Stress " + c, "1234", initial).thenCompose(acc -> client.login(accounts[cc] = acc, "1234"));
+                }
+                CompletableFuture.allOf(ready).join();
+                long t1 = System.nanoTime();
+                int held = local != null ? local.connections() : connections;
+                System.err.printf("%,d connections open and logged in after %.2fs%s%n", connections, (t1 - t0) / 1e9,
+                        local != null ? " (server sees " + held + ")" : "");
+                clean = held == connections;
+
+                CompletableFuture<?>[] done = new CompletableFuture<?>[connections];
+                for (int c = 0; c < connections; c++) {
+                    CompletableFuture<Void> finished = new CompletableFuture<>();
+                    done[c] = finished;
+                    Runnable[] next = new Runnable[1];
+                    SplittableRandom rnd = new SplittableRandom(seed + c);
+                    BankClient client = clients[c];
+                    java.util.concurrent.atomic.AtomicInteger issued = new java.util.concurrent.atomic.AtomicInteger(), answered = new java.util.concurrent.atomic.AtomicInteger();
+                    int total = requests;
+                    next[0] = () -> {
+                        if (issued.getAndIncrement() >= total) return;
+                        long amount, start = System.nanoTime();
+                        CompletableFuture<?> f;
+                        int kind;
+                        synchronized (rnd) {
+                            kind = rnd.nextInt(10);
+                            amount = 1 + rnd.nextLong(Money.parse("50"));
+                        }
+                        if (kind < 3) f = client.deposit(amount).thenRun(() -> deposited.add(amount));
+                        else if (kind < 5) f = client.withdraw(amount).thenRun(() -> withdrawn.add(amount));
+                        else if (kind < 8) {
+                            int to;
+                            synchronized (rnd) { to = rnd.nextInt(accounts.length); }
+                            f = client.transfer(accounts[to], amount); // now and then to itself, which is booked like any other
+                        }
+                        else if (kind < 9) f = client.balance();
+                        else f = client.history(0, 20);
+                        f.whenComplete((r, e) -> {
+                            latency.since(start);
+                            if (e == null) ok.increment();
+                            else if (e.getCause() instanceof Rejected) rejected.increment();
+                            else { finished.completeExceptionally(e); return; }
+                            if (answered.incrementAndGet() == total) finished.complete(null);
+                            else next[0].run();
+                        });
+                    };
+                    if (total == 0) finished.complete(null);
+                    for (int k = 0; k < Math.min(depth, total); k++) next[0].run();
+                }
+                CompletableFuture.allOf(done).join();
+                long t2 = System.nanoTime();
+
+                java.util.List<CompletableFuture<Long>> balances = new ArrayList<>(connections);
+                for (BankClient c : clients) balances.add(c.balance());
+                long after = 0;
+                for (CompletableFuture<Long> b : balances) after += b.join();
+                long expected = connections * initial + deposited.sum() - withdrawn.sum();
+                double secs = (t2 - t1) / 1e9;
+                Metrics.Snapshot s = latency.snapshot();
+                System.err.printf("%,d requests (%,d rejected) in %.2fs: %,.0f requests/s, latency p50 %,dns p99 %,dns p99.9 %,dns max %,dns%n",
+                        ok.sum() + rejected.sum(), rejected.sum(), secs, (ok.sum() + rejected.sum()) / Math.max(secs, 1e-9),
+                        s.percentile(0.50), s.percentile(0.99), s.percentile(0.999), s.max);
+                System.err.printf("balance %s: %s across stress accounts (expected %s)%n", after == expected ? "conserved" : "NOT CONSERVED",
+                        Money.format(after), Money.format(expected));
+                clean &= after == expected;
+                for (BankClient c : clients) c.close();
+            } finally {
+                if (local != null) local.close();
+            }
+            System.err.println(clean ? "OK" : "FAILED");
+            if (!clean) System.exit(1);
+        }
+    }
+
+    // ----------------- Metrics -----------------
+
+    /**
+     * Process-wide counters and latency histograms for the hot paths and persistence. Recording is
+     * lock-free (atomic bucket increments and LongAdders) and costs a few System.nanoTime() calls
+     * per operation. Everything is published as MXBeans (bank:type=Latency,name=... and
+     * bank:type=Metrics), dumped as JSON to -Dbank.metrics.file every -Dbank.metrics.interval
+     * seconds (0 turns the dump off) and shown on the admin tab.
+     *
+     * Operation latencies cover booking (lock waits, checks, journal append); waiting for the
+     * fsync is journalSync. A monitor cannot say whether it was contended, so lock waits of
+     * {@link #CONTENDED_NANOS} or more are counted as contended.
+     */
+    public static final class Metrics {
+        static final String DUMP_FILE = System.getProperty("bank.metrics.file", "bank_metrics.json");
+        static final long DUMP_SECONDS = Long.getLong("bank.metrics.interval", 60);
+        static final long CONTENDED_NANOS = 1_000;
+
+        static final Histogram CREATE = new Histogram("createAccount");
+        static final Histogram DEPOSIT = new Histogram("deposit");
+        static final Histogram WITHDRAW = new Histogram("withdraw");
+        static final Histogram TRANSFER = new Histogram("transfer");
+        static final Histogram TRANSFER_BATCH = new Histogram("transferBatch");
+        static final Histogram VERIFY_PIN = new Histogram("verifyPin");
+        static final Histogram JOURNAL_SYNC = new Histogram("journalSync");
+        static final Histogram MONITOR_WAIT = new Histogram("monitorWait");
+        static final Histogram CHECKPOINT_WAIT = new Histogram("checkpointWait");
+        static final Histogram SAVE = new Histogram("saveToFile");
+        static final Histogram SAVE_PAUSE = new Histogram("savePause"); // operations held off while the cut is taken
+        static final Histogram LOAD = new Histogram("loadFromFile");
+        static final Histogram ARCHIVE_READ = new Histogram("archiveRead"); // inflating an archived run missing from the cache
+        static final Histogram[] ALL = {CREATE, DEPOSIT, WITHDRAW, TRANSFER, TRANSFER_BATCH, VERIFY_PIN, JOURNAL_SYNC,
+                MONITOR_WAIT, CHECKPOINT_WAIT, SAVE, SAVE_PAUSE, LOAD, ARCHIVE_READ};
+
+        static final LongAdder CONTENDED_MONITORS = new LongAdder();
+        static final LongAdder CONTENDED_CHECKPOINTS = new LongAdder();
+        static final LongAdder JOURNAL_BYTES = new LongAdder();
+        static final LongAdder JOURNAL_FORCES = new LongAdder();
+        static final LongAdder SNAPSHOT_BYTES = new LongAdder();
+        static final LongAdder LOADED_BYTES = new LongAdder();
+        static final LongAdder ARCHIVED_ENTRIES = new LongAdder();
+        private static volatile long lastSnapshotBytes;
+        private static volatile AccountManager watched;
+        private static boolean registered;
+        private static ScheduledExecutorService dumper;
+
+        private Metrics() {}
+
+        /** Latency of one operation type, in nanoseconds. */
+        public interface LatencyMXBean {
+            long getCount();
+            double getMeanNanos();
+            long getP50Nanos();
+            long getP99Nanos();
+            long getP999Nanos();
+            long getMaxNanos();
+            void reset();
+        }
+
+        /** Lock contention, persistence volume and heap use. */
+        public interface BankMetricsMXBean {
+            int getAccounts();
+            long getHeapUsedBytes();
+            long getHeapPerAccountBytes();
+            long getContendedMonitors();
+            long getContendedCheckpoints();
+            long getJournalBytes();
+            long getJournalForces();
+            long getSnapshotBytesWritten();
+            long getLastSnapshotBytes();
+            long getLoadedBytes();
+            long getArchivedEntries();
+            void reset();
+        }
+
+        /**
+         * Log-linear histogram in the style of HdrHistogram: values below 32 have their own
+         * bucket, larger ones 16 buckets per power of two, so any value is reported within 1/16.
+         */
+        static final class Histogram implements LatencyMXBean {
+            private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+            final String name;
+            private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB);
+            private final LongAdder sum = new LongAdder();
+            private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+            Histogram(String name) { this.name = name; }
+
+            void record(long nanos) {
+                if (nanos < 0) nanos = 0;
+                buckets.incrementAndGet(bucket(nanos));
+                sum.add(nanos);
+                max.accumulate(nanos);
+            }
+
+            /** Records the time since {@code start} and returns now, so waits can be chained. */
+            long since(long start) {
+                long now = System.nanoTime();
+                record(now - start);
+                return now;
+            }
+
+            static int bucket(long v) {
+                if (v < 2 * SUB) return (int) v;
+                int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+                return shift * SUB + (int) (v >>> shift);
+            }
+
+            /** Largest value that falls into bucket {@code i}. */
+            static long upper(int i) {
+                if (i < 2 * SUB) return i;
+                int shift = i / SUB - 1;
+                return ((long) ((i & (SUB - 1)) | SUB) + 1 << shift) - 1;
+            }
+
+            Snapshot snapshot() {
+                long[] counts = new long[buckets.length()];
+                long n = 0;
+                for (int i = 0; i < counts.length; i++) n += counts[i] = buckets.get(i);
+                return new Snapshot(name, counts, n, sum.sum(), max.get());
+            }
+
+            /** Not atomic with respect to concurrent recording; an operation in flight may land on either side. */
+            @Override public void reset() {
+                for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+                sum.reset();
+                max.reset();
+            }
+
+            @Override public long getCount() { return snapshot().count; }
+            @Override public double getMeanNanos() { return snapshot().mean(); }
+            @Override public long getP50Nanos() { return snapshot().percentile(0.50); }
+            @Override public long getP99Nanos() { return snapshot().percentile(0.99); }
+            @Override public long getP999Nanos() { return snapshot().percentile(0.999); }
+            @Override public long getMaxNanos() { return max.get(); }
+        }
+
+        /** Counts of a histogram copied at one time. */
+        static final class Snapshot {
+            final String name;
+            final long count, sum, max;
+            private final long[] counts;
+
+            Snapshot(String name, long[] counts, long count, long sum, long max) {
+                this.name = name;
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            double mean() { return count == 0 ? 0 : (double) sum / count; }
+
+            long percentile(double q) {
+                long rank = Math.max(1, (long) Math.ceil(q * count)), seen = 0;
+                for (int i = 0; i < counts.length && count > 0; i++) {
+                    if ((seen += counts[i]) >= rank) return Math.min(Histogram.upper(i), max);
+                }
+                return max;
+            }
+        }
+
+        private static final class Bank implements BankMetricsMXBean {
+            @Override public int getAccounts() { AccountManager m = watched; return m == null ? 0 : m.listAllAccounts().size(); }
+            @Override public long getHeapUsedBytes() { return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(); }
+            /** Heap in use (garbage included) divided by the number of accounts; a rough figure. */
+            @Override public long getHeapPerAccountBytes() { int n = getAccounts(); return n == 0 ? 0 : getHeapUsedBytes() / n; }
+            @Override public long getContendedMonitors() { return CONTENDED_MONITORS.sum(); }
+            @Override public long getContendedCheckpoints() { return CONTENDED_CHECKPOINTS.sum(); }
+            @Override public long getJournalBytes() { return JOURNAL_BYTES.sum(); }
+            @Override public long getJournalForces() { return JOURNAL_FORCES.sum(); }
+            @Override public long getSnapshotBytesWritten() { return SNAPSHOT_BYTES.sum(); }
+            @Override public long getLastSnapshotBytes() { return lastSnapshotBytes; }
+            @Override public long getLoadedBytes() { return LOADED_BYTES.sum(); }
+            @Override public long getArchivedEntries() { return ARCHIVED_ENTRIES.sum(); }
+            @Override public void reset() { Metrics.reset(); }
+        }
+
+        static final BankMetricsMXBean BANK = new Bank();
+
+        /** Records a wait for an account monitor that began at {@code start}; returns now. */
+        static long monitorAcquired(long start) {
+            long now = System.nanoTime();
+            MONITOR_WAIT.record(now - start);
+            if (now - start >= CONTENDED_NANOS) CONTENDED_MONITORS.increment();
+            return now;
+        }
+
+        /** Records a wait for the read side of a shard lock that began at {@code start}; returns now. */
+        static long checkpointAcquired(long start) {
+            long now = System.nanoTime();
+            CHECKPOINT_WAIT.record(now - start);
+            if (now - start >= CONTENDED_NANOS) CONTENDED_CHECKPOINTS.increment();
+            return now;
+        }
+
+        static void snapshotWritten(long bytes) {
+            SNAPSHOT_BYTES.add(bytes);
+            lastSnapshotBytes = bytes;
+        }
+
+        static void reset() {
+            for (Histogram h : ALL) h.reset();
+            for (LongAdder a : new LongAdder[]{CONTENDED_MONITORS, CONTENDED_CHECKPOINTS, JOURNAL_BYTES, JOURNAL_FORCES, SNAPSHOT_BYTES, LOADED_BYTES, ARCHIVED_ENTRIES}) a.reset();
+        }
+
+        /**
+         * Reports on {@code m} (account count, heap per account), registers the MXBeans once and,
+         * unless disabled, starts the periodic dump. Registration problems are reported, not fatal.
+         */
+        static synchronized void watch(AccountManager m) {
+            watched = m;
+            if (!registered) {
+                registered = true;
+                try {
+                    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                    server.registerMBean(BANK, new ObjectName("bank:type=Metrics"));
+                    for (Histogram h : ALL) server.registerMBean(h, new ObjectName("bank:type=Latency,name=" + h.name));
+                } catch (JMException e) {
+                    System.err.println("Metrics MXBeans not registered: " + e);
+                }
+            }
+            if (dumper == null && DUMP_SECONDS > 0) {
+                dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "bank-metrics");
+                    t.setDaemon(true);
+                    return t;
+                });
+                dumper.scheduleWithFixedDelay(Metrics::dumpQuietly, DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+
+        /** Writes {@link #json()} to {@link #DUMP_FILE}, replacing the previous dump atomically. */
+        static void dump() throws IOException {
+            Path file = Paths.get(DUMP_FILE), tmp = Paths.get(DUMP_FILE + ".tmp");
+            Files.write(tmp, json().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static void dumpQuietly() {
+            try { dump(); } catch (IOException | RuntimeException e) { System.err.println("Metrics dump failed: " + e); }
+        }
+
+        static String json() {
+            StringBuilder sb = new StringBuilder(2048).append("{\"time\":\"").append(Instant.now())
+                    .append("\",\"accounts\":").append(BANK.getAccounts())
+                    .append(",\"heapUsedBytes\":").append(BANK.getHeapUsedBytes())
+                    .append(",\"heapPerAccountBytes\":").append(BANK.getHeapPerAccountBytes())
+                    .append(",\"contendedMonitors\":").append(BANK.getContendedMonitors())
+                    .append(",\"contendedCheckpoints\":").append(BANK.getContendedCheckpoints())
+                    .append(",\"journalBytes\":").append(BANK.getJournalBytes())
+                    .append(",\"journalForces\":").append(BANK.getJournalForces())
+                    .append(",\"snapshotBytesWritten\":").append(BANK.getSnapshotBytesWritten())
+                    .append(",\"lastSnapshotBytes\":").append(BANK.getLastSnapshotBytes())
+                    .append(",\"loadedBytes\":").append(BANK.getLoadedBytes())
+                    .append(",\"archivedEntries\":").append(BANK.getArchivedEntries())
+                    .append(",\"latencyNanos\":{");
+            for (int i = 0; i < ALL.length; i++) {
+                Snapshot s = ALL[i].snapshot();
+                sb.append(i == 0 ? "\n  \"" : ",\n  \"").append(s.name).append("\":{\"count\":").append(s.count)
+                  .append(",\"mean\":").append(Math.round(s.mean()))
+                  .append(",\"p50\":").append(s.percentile(0.50))
+                  .append(",\"p99\":").append(s.percentile(0.99))
+                  .append(",\"p999\":").append(s.percentile(0.999))
+                  .append(",\"max\":").append(s.max).append('}');
+            }
+            return sb.append("\n}}\n").toString();
+        }
+    }
+
+    // ----------------- Benchmarks -----------------
+
+    /**
+     * Micro-benchmarks for the hot paths: account creation, contended transfers (PIN-checked and
+     * session-authorized), PIN checks, a 10,000-leg payroll (one batch vs. single transfers),
+     * snapshot save/load at several bank sizes and history rendering. Each benchmark runs warmup
+     * iterations, then timed ones; all data is generated from a fixed seed so runs are comparable.
+     * Results are printed as a table on stderr and written as JSON (one object per benchmark and
+     * parameter set, with per-iteration scores and latency percentiles) to stdout or {@code --out}.
+     *
+     * Options: --filter regex, --warmup N, --iterations N, --time ms (per throughput iteration),
+     * --threads 1,2,4 (transfer, transferSession), --sizes 10000,100000 (save/load), --out file.
+     */
+    static final class Benchmarks {
+        private static final long SEED = 42;
+        private static final int MAX_SAMPLES = 1 << 16; // latency samples kept per thread and iteration
+
+        private int warmup = 2, iterations = 5;
+        private long timeMillis = 1000;
+        private int[] threads = {1, 2, 4, 8};
+        private int[] sizes = {10_000, 100_000, 1_000_000};
+        private java.util.regex.Pattern filter = java.util.regex.Pattern.compile(".*");
+        private final java.util.List<String> results = new ArrayList<>();
+
+        /** One timed operation; {@code thread} is the caller's index, {@code i} counts its calls. */
+        interface Op { void run(int thread, long i) throws Exception; }
+
+        interface Task { void run() throws Exception; }
+
+        static void run(String[] args) throws Exception {
+            Benchmarks b = new Benchmarks();
+            String out = null;
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--filter": b.filter = java.util.regex.Pattern.compile(args[++i]); break;
+                    case "--warmup": b.warmup = Integer.parseInt(args[++i]); break;
+                    case "--iterations": b.iterations = Integer.parseInt(args[++i]); break;
+                    case "--time": b.timeMillis = Long.parseLong(args[++i]); break;
+                    case "--threads": b.threads = ints(args[++i]); break;
+                    case "--sizes": b.sizes = ints(args[++i]); break;
+                    case "--out": out = args[++i]; break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            b.all();
+            String json = b.json();
+            if (out == null) System.out.println(json);
+            else Files.write(Paths.get(out), json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void all() throws Exception {
+            if (selected("createAccount")) {
+                AccountManager m = new AccountManager();
+                throughput("createAccount", "", 1, (t, i) -> m.createAccount("Owner " + i, "1234", 10_000));
+            }
+            if (selected("verifyPin")) {
+                BankAccount a = new BankAccount("Owner", 1, "1234", 0);
+                throughput("verifyPin", "", 1, (t, i) -> {
+                    boolean good = (i & 1) == 0;
+                    if (a.verifyPin(good ? "1234" : "9999") != good) throw new AssertionError("verifyPin");
+                });
+            }
+            if (selected("transfer")) {
+                // a small pool of accounts so threads really contend for the same monitors
+                AccountManager m = new AccountManager();
+                long[] ids = new long[16];
+                for (int k = 0; k < ids.length; k++) ids[k] = m.createAccount("Owner " + k, "1234", Money.parse("1000000000")).getAccountNumber();
+                for (int n : threads) {
+                    SplittableRandom[] rnd = new SplittableRandom[n];
+                    for (int k = 0; k < n; k++) rnd[k] = new SplittableRandom(SEED + k);
+                    throughput("transfer", "\"threads\":" + n + ",\"accounts\":" + ids.length, n, (t, i) -> {
+                        long from = ids[rnd[t].nextInt(ids.length)], to = ids[rnd[t].nextInt(ids.length)];
+                        if (from == to) to = ids[(Arrays.binarySearch(ids, from) + 1) % ids.length];
+                        m.transfer(from, "1234", to, 1 + rnd[t].nextInt(100));
+                    });
+                }
+            }
+            if (selected("transferSession")) {
+                // as transfer, but authorized by a login session instead of a PIN check per call
+                AccountManager m = new AccountManager();
+                long[] ids = new long[16];
+                String[] sessions = new String[ids.length];
+                for (int k = 0; k < ids.length; k++) {
+                    ids[k] = m.createAccount("Owner " + k, "1234", Money.parse("1000000000")).getAccountNumber();
+                    sessions[k] = m.login(ids[k], "1234");
+                }
+                for (int n : threads) {
+                    SplittableRandom[] rnd = new SplittableRandom[n];
+                    for (int k = 0; k < n; k++) rnd[k] = new SplittableRandom(SEED + k);
+                    throughput("transferSession", "\"threads\":" + n + ",\"accounts\":" + ids.length, n, (t, i) -> {
+                        int from = rnd[t].nextInt(ids.length), to = rnd[t].nextInt(ids.length);
+                        if (from == to) to = (from + 1) % ids.length;
+                        m.transfer(sessions[from], ids[to], 1 + rnd[t].nextInt(100));
+                    });
+                }
+            }
+            if (selected("transactionToString") || selected("historyView")) {
+                BankAccount a = new BankAccount("Owner", 1, "1234", 100);
+                SplittableRandom rnd = new SplittableRandom(SEED);
+                for (int k = 0; k < 1000; k++) a.apply(1_700_000_000_000L + k * 60_000L, Transaction.Type.values()[rnd.nextInt(4)], 1 + rnd.nextInt(100_000), 1_000_000_000L + rnd.nextInt(1000));
+                java.util.List<Transaction> txs = a.getTransactions();
+                if (selected("transactionToString")) throughput("transactionToString", "", 1, (t, i) -> txs.get((int) (i % txs.size())).toString());
+                if (selected("historyView")) {
+                    // what the history list formats when an account is opened: the last screenful of rows
+                    throughput("historyView", "\"transactions\":" + txs.size() + ",\"rows\":40", 1, (t, i) -> {
+                        HistoryListModel model = new HistoryListModel();
+                        model.show(a);
+                        for (int r = model.getSize() - 40; r < model.getSize(); r++) model.getElementAt(r);
+                    });
+                }
+            }
+            if (selected("payroll")) {
+                // one employer paying 10,000 employees, journaled: as a batch and as single transfers
+                Path dir = Files.createTempDirectory("bank-bench");
+                try {
+                    AccountManager m = AccountManager.loadFromFile(dir.resolve("payroll.bin").toString());
+                    long employer = m.createAccount("Employer", "1234", Money.parse("1000000000")).getAccountNumber();
+                    java.util.List<AccountManager.Leg> legs = new ArrayList<>();
+                    for (int k = 0; k < 10_000; k++) legs.add(new AccountManager.Leg(employer, m.createAccount("Employee " + k, "1234", 0).getAccountNumber(), 100_000 + k));
+                    single("payrollBatch", "\"legs\":" + legs.size(), legs.size(), () -> m.transferBatch(legs));
+                    single("payrollSingle", "\"legs\":" + legs.size(), legs.size(), () -> { for (AccountManager.Leg l : legs) m.transfer(l.from, "1234", l.to, l.amount); });
+                    m.close();
+                } finally {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) { for (Path f : files) Files.deleteIfExists(f); }
+                    Files.deleteIfExists(dir);
+                }
+            }
+            if (selected("saveToFile") || selected("loadFromFile")) {
+                Path dir = Files.createTempDirectory("bank-bench");
+                try {
+                    for (int size : sizes) persistence(dir, size);
+                } finally {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) { for (Path f : files) Files.deleteIfExists(f); }
+                    Files.deleteIfExists(dir);
+                }
+            }
+        }
+
+        private void persistence(Path dir, int size) throws Exception {
+            String file = dir.resolve("bench-" + size + ".bin").toString();
+            AccountManager m = new AccountManager(); // no journal while populating
+            SplittableRandom rnd = new SplittableRandom(SEED);
+            for (int k = 0; k < size; k++) m.createAccount("Owner " + k, String.valueOf(1000 + rnd.nextInt(9000)), rnd.nextInt(1_000_000));
+            m.saveToFile(file);
+            String params = "\"accounts\":" + size;
+            if (selected("saveToFile")) {
+                // every save rewrites the snapshot; a deposit per run keeps it from being trivially empty
+                single("saveToFile", params, size, () -> { m.deposit(1_000_000_000L, 1); m.saveToFile(file); });
+            }
+            m.close();
+            if (selected("loadFromFile")) single("loadFromFile", params, size, () -> AccountManager.loadFromFile(file).close());
+        }
+
+        private boolean selected(String name) { return filter.matcher(name).find(); }
+
+        /** Runs {@code op} on {@code n} threads for fixed-time iterations; scores are ops/s. */
+        private void throughput(String name, String params, int n, Op op) throws Exception {
+            double[] scores = new double[iterations];
+            long[] samples = new long[0];
+            long[] counter = new long[n];
+            for (int it = -warmup; it < iterations; it++) {
+                long[][] lat = new long[n][];
+                int[] kept = new int[n];
+                long[] ops = new long[n];
+                java.util.concurrent.CyclicBarrier start = new java.util.concurrent.CyclicBarrier(n + 1);
+                java.util.concurrent.atomic.AtomicReference<Throwable> failure = new java.util.concurrent.atomic.AtomicReference<>();
+                long[] deadline = new long[1];
+                Thread[] workers = new Thread[n];
+                for (int t = 0; t < n; t++) {
+                    int tt = t;
+                    workers[t] = new Thread(() -> {
+                        long[] l = lat[tt] = new long[MAX_SAMPLES];
+                        try {
+                            start.await();
+                            long end = deadline[0], count = 0, stride = 0; // samples every (stride + 1)th call
+                            int k = 0;
+                            for (long now = System.nanoTime(); now < end; ) {
+                                op.run(tt, counter[tt]++);
+                                long done = System.nanoTime();
+                                if ((count & stride) == 0) {
+                                    if (k == l.length) { // full: keep every other sample, sample half as often
+                                        for (int j = 0; j < k / 2; j++) l[j] = l[2 * j];
+                                        k /= 2;
+                                        stride = stride * 2 + 1;
+                                    }
+                                    if ((count & stride) == 0) l[k++] = done - now;
+                                }
+                                now = done;
+                                count++;
+                            }
+                            ops[tt] = count;
+                            kept[tt] = k;
+                        } catch (Throwable e) { failure.compareAndSet(null, e); }
+                    }, "bench-" + name + "-" + t);
+                    workers[t].start();
+                }
+                deadline[0] = System.nanoTime() + timeMillis * 1_000_000;
+                start.await();
+                for (Thread w : workers) w.join();
+                if (failure.get() != null) throw new IllegalStateException(name + " failed", failure.get());
+                if (it < 0) continue;
+                long total = 0;
+                for (long c : ops) total += c;
+                scores[it] = total * 1e3 / timeMillis;
+                int from = samples.length;
+                int added = 0;
+                for (int k : kept) added += k;
+                samples = Arrays.copyOf(samples, from + added);
+                for (int t = 0; t < n; t++) { System.arraycopy(lat[t], 0, samples, from, kept[t]); from += kept[t]; }
+            }
+            Arrays.sort(samples);
+            record(name, params, "throughput", "ops/s", scores, samples);
+        }
+
+        /** Times single invocations of {@code op}; scores are ms per call (plus items/s in the table). */
+        private void single(String name, String params, int items, Task op) throws Exception {
+            double[] scores = new double[iterations];
+            long[] samples = new long[iterations];
+            for (int it = -warmup; it < iterations; it++) {
+                long t0 = System.nanoTime();
+                op.run();
+                long took = System.nanoTime() - t0;
+                if (it < 0) continue;
+                scores[it] = took / 1e6;
+                samples[it] = took;
+            }
+            Arrays.sort(samples);
+            record(name, params + ",\"itemsPerSecond\":" + Math.round(items / (mean(scores) / 1e3)), "single", "ms", scores, samples);
+        }
+
+        private void record(String name, String params, String mode, String unit, double[] scores, long[] sortedNanos) {
+            double mean = mean(scores), var = 0;
+            for (double x : scores) var += (x - mean) * (x - mean);
+            double err = scores.length > 1 ? Math.sqrt(var / (scores.length - 1)) : 0;
+            System.err.printf("%-20s %-40s %14.2f +/- %-10.2f %-6s p50 %8.0fns p99 %10.0fns%n", name, params, mean, err, unit,
+                    (double) percentile(sortedNanos, 0.50), (double) percentile(sortedNanos, 0.99));
+            StringBuilder sb = new StringBuilder("{\"benchmark\":\"").append(name).append("\",\"mode\":\"").append(mode)
+                    .append("\",\"params\":{").append(params).append("},\"unit\":\"").append(unit)
+                    .append("\",\"score\":").append(mean).append(",\"scoreError\":").append(err).append(",\"iterations\":[");
+            for (int i = 0; i < scores.length; i++) sb.append(i == 0 ? "" : ",").append(scores[i]);
+            sb.append("],\"latencyNanos\":{\"samples\":").append(sortedNanos.length)
+              .append(",\"p50\":").append(percentile(sortedNanos, 0.50))
+              .append(",\"p99\":").append(percentile(sortedNanos, 0.99))
+              .append(",\"p999\":").append(percentile(sortedNanos, 0.999))
+              .append(",\"max\":").append(sortedNanos.length == 0 ? 0 : sortedNanos[sortedNanos.length - 1]).append("}}");
+            results.add(sb.toString());
+        }
+
+        private String json() {
+            StringBuilder sb = new StringBuilder("{\"environment\":{");
+            sb.append("\"java\":\"").append(System.getProperty("java.version"))
+              .append("\",\"vm\":\"").append(System.getProperty("java.vm.name"))
+              .append("\",\"os\":\"").append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.arch"))
+              .append("\",\"cpus\":").append(Runtime.getRuntime().availableProcessors())
+              .append(",\"maxHeap\":").append(Runtime.getRuntime().maxMemory())
+              .append(",\"warmup\":").append(warmup).append(",\"iterations\":").append(iterations)
+              .append(",\"timeMillis\":").append(timeMillis).append(",\"seed\":").append(SEED)
+              .append(",\"started\":\"").append(java.time.Instant.now()).append("\"},\"results\":[\n");
+            for (int i = 0; i < results.size(); i++) sb.append(i == 0 ? "  " : ",\n  ").append(results.get(i));
+            return sb.append("\n]}").toString();
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.floor(p * sorted.length))];
+        }
+
+        private static double mean(double[] xs) {
+            double s = 0;
+            for (double x : xs) s += x;
+            return xs.length == 0 ? 0 : s / xs.length;
+        }
+
+        private static int[] ints(String csv) { return Arrays.stream(csv.split(",")).mapToInt(x -> Integer.parseInt(x.trim())).toArray(); }
+    }
+
+    // ----------------- Load simulation -----------------
+
+    /**
+     * Workload generator for the engine. It creates {@code --accounts} accounts and freezes a
+     * fraction of them. Then {@code --threads} threads drive a mix of deposits, withdrawals and
+     * PIN-checked transfers against the bank. Accounts are picked uniformly, or Zipf-skewed so a
+     * few hot accounts take most of the traffic.
+     *
+     * Operations are generated in batches of {@link #BATCH}, each from its own stream derived
+     * from the seed. The same seed therefore yields the same operations at any thread count;
+     * only their interleaving, and so which withdrawals bounce, depends on the threads. The report
+     * covers throughput, latency percentiles per operation, rejections (insufficient funds,
+     * frozen) and a balance-conservation check. It is printed as a table on stderr and as JSON on
+     * stdout or {@code --out}; {@code workloadHash} identifies the operation stream.
+     *
+     * Options: --accounts N, --ops N, --threads N, --mix deposit,withdraw,transfer (weights),
+     * --zipf s (0 = uniform), --frozen fraction, --max-amount amount, --seed N,
+     * --data file (a new bank file, so the journal is exercised), --out file.
+     */
+    static final class Simulator {
+        private static final int BATCH = 1024;
+        private static final String PIN = "1234";
+        private static final String[] OPS = {"deposit", "withdraw", "transfer"};
+        private static final int DEPOSIT = 0, WITHDRAW = 1, TRANSFER = 2;
+
+        private int accounts = 10_000, threads = 16;
+        private long ops = 1_000_000, seed = 42;
+        private int[] mix = {25, 25, 50};
+        private double zipf, frozen = 0.01;
+        private long maxAmount = Money.parse("100");
+        private String data; // null: in memory, no journal
+
+        private final Metrics.Histogram[] latency = {new Metrics.Histogram(OPS[0]), new Metrics.Histogram(OPS[1]), new Metrics.Histogram(OPS[2])};
+        private final LongAdder[] completed = adders(), insufficient = adders(), rejectedFrozen = adders();
+        private final LongAdder deposited = new LongAdder(), withdrawn = new LongAdder(), workloadHash = new LongAdder();
+        private long[] ids;       // account numbers in creation order
+        private int[] hot;        // popularity rank -> index into ids
+        private double[] zipfCdf; // null when uniform
+
+        static void run(String[] args) throws Exception {
+            Simulator s = new Simulator();
+            String out = null;
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--accounts": s.accounts = Integer.parseInt(args[++i]); break;
+                    case "--ops": s.ops = Long.parseLong(args[++i]); break;
+                    case "--threads": s.threads = Integer.parseInt(args[++i]); break;
+                    case "--mix": s.mix = Benchmarks.ints(args[++i]); break;
+                    case "--zipf": s.zipf = Double.parseDouble(args[++i]); break;
+                    case "--frozen": s.frozen = Double.parseDouble(args[++i]); break;
+                    case "--max-amount": s.maxAmount = Money.parse(args[++i]); break;
+                    case "--seed": s.seed = Long.parseLong(args[++i]); break;
+                    case "--data": s.data = args[++i]; break;
+                    case "--out": out = args[++i]; break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (s.accounts < 2 || s.threads < 1 || s.ops < 0 || s.maxAmount < 1) throw new IllegalArgumentException("Need at least 2 accounts, 1 thread and a positive max amount");
+            if (s.mix.length != 3 || Arrays.stream(s.mix).anyMatch(w -> w < 0) || Arrays.stream(s.mix).sum() == 0) throw new IllegalArgumentException("--mix takes three non-negative weights");
+            String json = s.simulate();
+            if (out == null) System.out.println(json);
+            else Files.write(Paths.get(out), json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static LongAdder[] adders() { return new LongAdder[]{new LongAdder(), new LongAdder(), new LongAdder()}; }
+
+        private String simulate() throws Exception {
+            if (data != null && Files.exists(Paths.get(data))) throw new IllegalArgumentException("Simulation needs a new data file: " + data);
+            AccountManager m = populate();
+            if (data != null) { // reopen so operations go through the journal
+                m.saveToFile(data);
+                m.close();
+                m = AccountManager.loadFromFile(data);
+            }
+            long before = m.totalBalance();
+
+            AccountManager bank = m;
+            java.util.concurrent.atomic.AtomicLong nextBatch = new java.util.concurrent.atomic.AtomicLong();
+            java.util.concurrent.atomic.AtomicReference<Throwable> failure = new java.util.concurrent.atomic.AtomicReference<>();
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    try {
+                        for (long b; (b = nextBatch.getAndIncrement()) * BATCH < ops; ) batch(bank, b);
+                    } catch (Throwable e) { failure.compareAndSet(null, e); }
+                }, "sim-" + t);
+                workers[t].start();
+            }
+            for (Thread w : workers) w.join();
+            long elapsed = System.nanoTime() - start;
+            if (failure.get() != null) throw new IllegalStateException("Simulation failed", failure.get());
+
+            long after = m.totalBalance(), expected = before + deposited.sum() - withdrawn.sum();
+            long negative = m.listAllAccounts().stream().filter(a -> a.getBalance() < 0).count();
+            long balancesHash = 0;
+            for (long id : ids) balancesHash = balancesHash * 31 + m.getAccount(id).getBalance();
+            if (data != null) {
+                m.saveToFile(data);
+                m.close();
+            }
+            return report(elapsed, before, after, expected, negative, balancesHash);
+        }
+
+        /** Creates the accounts (balances from the seed) and freezes the chosen fraction; no journal. */
+        private AccountManager populate() {
+            AccountManager m = new AccountManager();
+            SplittableRandom r = new SplittableRandom(seed);
+            ids = new long[accounts];
+            for (int i = 0; i < accounts; i++) ids[i] = m.createAccount("Sim " + i, PIN, r.nextLong(10 * maxAmount)).getAccountNumber();
+            for (int i = 0; i < accounts; i++) if (r.nextDouble() < frozen) m.setFrozen(ids[i], true);
+            hot = new int[accounts]; // shuffled, so hot accounts are spread over the number range and shards
+            for (int i = 0; i < accounts; i++) hot[i] = i;
+            for (int i = accounts - 1; i > 0; i--) {
+                int j = r.nextInt(i + 1), x = hot[i];
+                hot[i] = hot[j];
+                hot[j] = x;
+            }
+            if (zipf > 0) {
+                zipfCdf = new double[accounts];
+                double sum = 0;
+                for (int k = 0; k < accounts; k++) zipfCdf[k] = sum += 1 / Math.pow(k + 1, zipf);
+                for (int k = 0; k < accounts; k++) zipfCdf[k] /= sum;
+            }
+            return m;
+        }
+
+        /** Runs operations [b * BATCH, (b + 1) * BATCH) of the workload. */
+        private void batch(AccountManager m, long b) {
+            SplittableRandom r = new SplittableRandom(seed ^ (b + 1) * 0x9E3779B97F4A7C15L);
+            int total = mix[0] + mix[1] + mix[2];
+            for (long i = b * BATCH, end = Math.min(ops, i + BATCH); i < end; i++) {
+                int w = r.nextInt(total), op = w < mix[0] ? DEPOSIT : w < mix[0] + mix[1] ? WITHDRAW : TRANSFER;
+                int x = pick(r), y = pick(r);
+                if (y == x) y = (x + 1) % accounts;
+                long amount = 1 + r.nextLong(maxAmount);
+                workloadHash.add(mix64(mix64(mix64(op + i * 4L) ^ ids[x]) ^ (op == TRANSFER ? ids[y] : 0) ^ amount << 32));
+                long t0 = System.nanoTime();
+                try {
+                    switch (op) {
+                        case DEPOSIT: m.deposit(ids[x], amount); deposited.add(amount); break;
+                        case WITHDRAW: m.withdraw(ids[x], amount); withdrawn.add(amount); break;
+                        default: m.transfer(ids[x], PIN, ids[y], amount);
+                    }
+                    completed[op].increment();
+                } catch (IllegalStateException frozenAccount) {
+                    rejectedFrozen[op].increment();
+                } catch (IllegalArgumentException insufficientFunds) {
+                    insufficient[op].increment();
+                }
+                latency[op].since(t0);
+            }
+        }
+
+        /** MurmurHash3's 64-bit finalizer; the workload hash sums these, so it does not depend on thread order. */
+        static long mix64(long z) {
+            z = (z ^ z >>> 33) * 0xff51afd7ed558ccdL;
+            z = (z ^ z >>> 33) * 0xc4ceb9fe1a85ec53L;
+            return z ^ z >>> 33;
+        }
+
+        private int pick(SplittableRandom r) {
+            if (zipfCdf == null) return r.nextInt(accounts);
+            int k = Arrays.binarySearch(zipfCdf, r.nextDouble());
+            return hot[Math.min(accounts - 1, k < 0 ? -k - 1 : k)];
+        }
+
+        private String report(long elapsed, long before, long after, long expected, long negative, long balancesHash) {
+            double secs = elapsed / 1e9;
+            boolean conserved = after == expected && negative == 0;
+            StringBuilder sb = new StringBuilder("{\"seed\":").append(seed).append(",\"accounts\":").append(accounts)
+                    .append(",\"threads\":").append(threads).append(",\"ops\":").append(ops)
+                    .append(",\"mix\":[").append(mix[0]).append(',').append(mix[1]).append(',').append(mix[2]).append(']')
+                    .append(",\"zipf\":").append(zipf).append(",\"frozen\":").append(frozen)
+                    .append(",\"maxAmountCents\":").append(maxAmount).append(",\"journal\":").append(data != null)
+                    .append(",\"workloadHash\":").append(workloadHash.sum())
+                    .append(",\"elapsedMillis\":").append(elapsed / 1_000_000)
+                    .append(",\"opsPerSecond\":").append(Math.round(ops / Math.max(secs, 1e-9))).append(",\"operations\":{");
+            System.err.printf("%,d ops on %,d accounts, %d threads, %s: %.3fs, %,.0f ops/s%n", ops, accounts, threads,
+                    zipf > 0 ? "zipf " + zipf : "uniform", secs, ops / Math.max(secs, 1e-9));
+            System.err.printf("%-9s %12s %12s %9s %10s %10s %10s %12s%n", "op", "completed", "insufficient", "frozen", "p50 ns", "p99 ns", "p99.9 ns", "max ns");
+            for (int op = 0; op < OPS.length; op++) {
+                Metrics.Snapshot s = latency[op].snapshot();
+                System.err.printf("%-9s %,12d %,12d %,9d %10d %10d %10d %12d%n", OPS[op], completed[op].sum(), insufficient[op].sum(),
+                        rejectedFrozen[op].sum(), s.percentile(0.50), s.percentile(0.99), s.percentile(0.999), s.max);
+                sb.append(op == 0 ? "" : ",").append('"').append(OPS[op]).append("\":{\"completed\":").append(completed[op].sum())
+                  .append(",\"insufficientFunds\":").append(insufficient[op].sum()).append(",\"frozen\":").append(rejectedFrozen[op].sum())
+                  .append(",\"latencyNanos\":{\"mean\":").append(Math.round(s.mean())).append(",\"p50\":").append(s.percentile(0.50))
+                  .append(",\"p99\":").append(s.percentile(0.99)).append(",\"p999\":").append(s.percentile(0.999))
+                  .append(",\"max\":").append(s.max).append("}}");
+            }
+            System.err.printf("balance %s: %s before, %s deposited, %s withdrawn, %s after (expected %s), %d negative%n",
+                    conserved ? "conserved" : "NOT CONSERVED", Money.format(before), Money.format(deposited.sum()),
+                    Money.format(withdrawn.sum()), Money.format(after), Money.format(expected), negative);
+            return sb.append("},\"conservation\":{\"conserved\":").append(conserved).append(",\"before\":").append(before)
+                    .append(",\"deposited\":").append(deposited.sum()).append(",\"withdrawn\":").append(withdrawn.sum())
+                    .append(",\"after\":").append(after).append(",\"expected\":").append(expected)
+                    .append(",\"negativeBalances\":").append(negative)
+                    .append("},\"balancesHash\":").append(balancesHash).append("}").toString();
+        }
+    }
+
+    // ----------------- Reconciliation -----------------
+
+    /**
+     * Bank-wide reconciliation: every account's balance must equal the net of its history, every
+     * TRANSFER_OUT must have its TRANSFER_IN (same two accounts, amount and booking time), and the
+     * balances must add up to deposits minus withdrawals.
+     *
+     * Balances and history lengths are read at one instant, with every shard held still only for
+     * that; the histories are then streamed in parallel, a unit of accounts per task, with nothing
+     * held. Legs are not collected: each is hashed into one of {@link #BUCKETS} buckets that sum
+     * hashes and counts, outgoing legs adding and incoming ones subtracting, so matched legs cancel
+     * out. Only if a bucket does not come out at zero is the bank scanned again, keeping just the
+     * legs of such buckets, to name the ones without a partner.
+     */
+    static final class Audit {
+        static final int BUCKETS = 1 << 12;
+        static final int UNIT_ACCOUNTS = 4096;
+        static final int MAX_LISTED = 100;
+
+        /** The accounts, with their balances and history lengths at one instant. */
+        static final class Cut {
+            final BankAccount[] accounts;
+            final long[] balances;
+            final int[] sizes;
+
+            Cut(BankAccount[] accounts) {
+                this.accounts = accounts;
+                balances = new long[accounts.length];
+                sizes = new int[accounts.length];
+            }
+        }
+
+        /** What an audit found; every problem is counted, the first MAX_LISTED are described. */
+        static final class Report {
+            long accounts, entries, legs, totalBalance, deposits, withdrawals, transfersOut, transfersIn;
+            long balanceMismatches, unmatchedLegs, millis;
+            final java.util.List<String> problems = new ArrayList<>();
+
+            boolean conserved() { return totalBalance == deposits - withdrawals && transfersOut == transfersIn; }
+            boolean clean() { return balanceMismatches == 0 && unmatchedLegs == 0 && conserved(); }
+
+            public String toString() {
+                StringBuilder sb = new StringBuilder(256);
+                sb.append(String.format("%,d accounts, %,d transactions, %,d transfer legs in %,d ms%n", accounts, entries, legs, millis));
+                sb.append("balances ");
+                Money.appendTo(sb, totalBalance).append(" = deposits ");
+                Money.appendTo(sb, deposits).append(" - withdrawals ");
+                Money.appendTo(sb, withdrawals).append(", transfers out ");
+                Money.appendTo(sb, transfersOut).append(" = in ");
+                Money.appendTo(sb, transfersIn).append(conserved() ? ": conserved" : ": NOT CONSERVED").append(System.lineSeparator());
+                sb.append(String.format("%,d balance mismatches, %,d unmatched transfer legs%n", balanceMismatches, unmatchedLegs));
+                for (String p : problems) sb.append("  ").append(p).append(System.lineSeparator());
+                return sb.append(clean() ? "OK" : "FAILED").toString();
+            }
+        }
+
+        /** One unit's sums; merged pairwise as the parallel stream completes. */
+        private static final class Tally {
+            final long[] hashes = new long[BUCKETS];
+            final long[] counts = new long[BUCKETS];
+            long entries, legs, deposits, withdrawals, out, in, mismatches;
+            final java.util.List<String> problems = new ArrayList<>();
+
+            Tally merge(Tally o) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    hashes[b] += o.hashes[b];
+                    counts[b] += o.counts[b];
+                }
+                entries += o.entries;
+                legs += o.legs;
+                deposits += o.deposits;
+                withdrawals += o.withdrawals;
+                out += o.out;
+                in += o.in;
+                mismatches += o.mismatches;
+                for (String p : o.problems) if (problems.size() < MAX_LISTED) problems.add(p);
+                return this;
+            }
+        }
+
+        /** A transfer as both of its legs describe it. */
+        private static final class Leg {
+            final long from, to, amount, timestamp;
+
+            Leg(long from, long to, long amount, long timestamp) {
+                this.from = from;
+                this.to = to;
+                this.amount = amount;
+                this.timestamp = timestamp;
+            }
+
+            long hash() { return Simulator.mix64(Simulator.mix64(Simulator.mix64(from * 31 + to) ^ amount) ^ timestamp); }
+
+            @Override public boolean equals(Object o) {
+                if (!(o instanceof Leg)) return false;
+                Leg l = (Leg) o;
+                return from == l.from && to == l.to && amount == l.amount && timestamp == l.timestamp;
+            }
+
+            @Override public int hashCode() { return Long.hashCode(hash()); }
+
+            public String toString() {
+                StringBuilder sb = new StringBuilder(96).append("transfer of ");
+                Money.appendTo(sb, amount).append(" from ").append(from).append(" to ").append(to).append(" at ");
+                Transaction.TIME_FORMAT.formatTo(Instant.ofEpochMilli(timestamp), sb);
+                return sb.toString();
+            }
+        }
+
+        private Audit() {}
+
+        static void run(String[] args) throws Exception {
+            String data = DATA_FILE;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--data")) data = args[++i];
+                else { System.err.println("usage: --audit [--data file]"); return; }
+            }
+            AccountManager m = data.equals(DATA_FILE) ? AccountManager.open(data, LEGACY_DATA_FILE) : AccountManager.loadFromFile(data);
+            boolean clean;
+            try {
+                Report r = m.audit();
+                System.out.println(r);
+                clean = r.clean();
+            } finally { m.close(); }
+            if (!clean) System.exit(1);
+        }
+
+        static Report run(AccountManager m) {
+            long start = System.nanoTime();
+            Cut cut = m.auditCut();
+            int units = (cut.accounts.length + UNIT_ACCOUNTS - 1) / UNIT_ACCOUNTS;
+            Tally t = IntStream.range(0, units).parallel().mapToObj(u -> scan(cut, u)).reduce(Tally::merge).orElseGet(Tally::new);
+            Report r = new Report();
+            r.accounts = cut.accounts.length;
+            for (long b : cut.balances) r.totalBalance += b;
+            r.entries = t.entries;
+            r.legs = t.legs;
+            r.deposits = t.deposits;
+            r.withdrawals = t.withdrawals;
+            r.transfersOut = t.out;
+            r.transfersIn = t.in;
+            r.balanceMismatches = t.mismatches;
+            r.problems.addAll(t.problems);
+            boolean[] open = new boolean[BUCKETS];
+            boolean any = false;
+            for (int b = 0; b < BUCKETS; b++) any |= open[b] = t.hashes[b] != 0 || t.counts[b] != 0;
+            if (any) unmatched(cut, units, open, r);
+            r.millis = (System.nanoTime() - start) / 1_000_000;
+            return r;
+        }
+
+        private static Tally scan(Cut cut, int unit) {
+            Tally t = new Tally();
+            long[] sums = new long[5]; // net, then deposits, withdrawals, out and in of one account
+            for (int i = unit * UNIT_ACCOUNTS, end = Math.min(cut.accounts.length, i + UNIT_ACCOUNTS); i < end; i++) {
+                long account = cut.accounts[i].accountNumber;
+                Arrays.fill(sums, 0);
+                cut.accounts[i].log.forEach(0, cut.sizes[i], (ts, code, amount, cp) -> {
+                    sums[0] += TransactionLog.effect(code, amount);
+                    Transaction.Type type = TransactionLog.type(code);
+                    sums[1 + type.ordinal()] += amount;
+                    if (type == Transaction.Type.TRANSFER_OUT || type == Transaction.Type.TRANSFER_IN) {
+                        boolean out = type == Transaction.Type.TRANSFER_OUT;
+                        long h = (out ? new Leg(account, cp, amount, ts) : new Leg(cp, account, amount, ts)).hash();
+                        int b = (int) (h >>> 52);
+                        t.hashes[b] += out ? h : -h;
+                        t.counts[b] += out ? 1 : -1;
+                        t.legs++;
+                    }
+                });
+                t.entries += cut.sizes[i];
+                t.deposits += sums[1];
+                t.withdrawals += sums[2];
+                t.in += sums[3];
+                t.out += sums[4];
+                if (sums[0] != cut.balances[i]) {
+                    t.mismatches++;
+                    if (t.problems.size() < MAX_LISTED) {
+                        StringBuilder sb = new StringBuilder(96).append("account ").append(account).append(": balance ");
+                        Money.appendTo(sb, cut.balances[i]).append(", history adds up to ");
+                        t.problems.add(Money.appendTo(sb, sums[0]).toString());
+                    }
+                }
+            }
+            return t;
+        }
+
+        /** Second pass: nets the legs of the buckets that did not cancel out, and lists what is left. */
+        private static void unmatched(Cut cut, int units, boolean[] open, Report r) {
+            ConcurrentHashMap<Leg, Integer> legs = new ConcurrentHashMap<>();
+            IntStream.range(0, units).parallel().forEach(u -> {
+                for (int i = u * UNIT_ACCOUNTS, end = Math.min(cut.accounts.length, i + UNIT_ACCOUNTS); i < end; i++) {
+                    long account = cut.accounts[i].accountNumber;
+                    cut.accounts[i].log.forEach(0, cut.sizes[i], (ts, code, amount, cp) -> {
+                        Transaction.Type type = TransactionLog.type(code);
+                        if (type != Transaction.Type.TRANSFER_OUT && type != Transaction.Type.TRANSFER_IN) return;
+                        boolean out = type == Transaction.Type.TRANSFER_OUT;
+                        Leg leg = out ? new Leg(account, cp, amount, ts) : new Leg(cp, account, amount, ts);
+                        if (open[(int) (leg.hash() >>> 52)]) legs.merge(leg, out ? 1 : -1, (a, b) -> a + b == 0 ? null : a + b);
+                    });
+                }
+            });
+            Leg[] left = legs.keySet().toArray(new Leg[0]);
+            Arrays.sort(left, Comparator.comparingLong((Leg l) -> l.timestamp).thenComparingLong(l -> l.from).thenComparingLong(l -> l.to));
+            for (Leg leg : left) {
+                int n = legs.get(leg);
+                r.unmatchedLegs += Math.abs(n);
+                if (r.problems.size() < 2 * MAX_LISTED) {
+                    r.problems.add(leg + (n > 0 ? ": TRANSFER_OUT without its TRANSFER_IN" : ": TRANSFER_IN without its TRANSFER_OUT") + (Math.abs(n) > 1 ? " (x" + Math.abs(n) + ")" : ""));
+                }
+            }
+        }
+    }
+
+    // ----------------- Export -----------------
+
+    /**
+     * Streaming export of the accounts and of the full transaction ledger. Work is cut into units
+     * (runs of accounts, or slices of one account's history, of at most {@link #UNIT_ENTRIES}
+     * entries); a wave of units is encoded in parallel and then written in order through a
+     * FileChannel, so memory stays bounded however large the ledger is. With gzip, each unit is
+     * compressed by its worker into a gzip member of its own; concatenated members are one valid
+     * .gz file. Times are filtered as [from, to) epoch millis.
+     *
+     * Ledger formats:
+     *  - CSV: account,time,type,amount,counterparty,note (local time, amounts in currency units)
+     *  - COLUMNAR: magic "BANKLEDG", version, from, to; then per account slice: account number,
+     *    entry count and the timestamp, type code, amount (cents) and counterparty columns
+     */
+    static final class Export {
+        enum Format { CSV, COLUMNAR }
+        static final long MAGIC = 0x42414E4B4C454447L; // "BANKLEDG"
+        static final int VERSION = 1;
+        private static final int UNIT_ENTRIES = 64 * 1024;
+        private static final int UNIT_ACCOUNTS = 4096;
+
+        static final class Options {
+            Format format = Format.CSV;
+            boolean gzip;
+            long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+        }
+
+        static final class Summary {
+            long accounts, entries, bytes;
+            public String toString() { return String.format("%,d accounts, %,d transactions, %,d bytes", accounts, entries, bytes); }
+        }
+
+        /** Entries [from, to) of one account, as sized when the export was planned. */
+        private static final class Slice {
+            final BankAccount account;
+            final int from, to;
+            Slice(BankAccount account, int from, int to) { this.account = account; this.from = from; this.to = to; }
+        }
+
+        /** One encoded unit. */
+        private static final class Encoded {
+            final byte[] bytes;
+            final int length, entries;
+            Encoded(byte[] bytes, int length, int entries) { this.bytes = bytes; this.length = length; this.entries = entries; }
+        }
+
+        private Export() {}
+
+        /** Writes Account,Owner,Balance,Frozen rows (always CSV). */
+        static Summary accounts(AccountManager m, Path target, Options o) throws IOException {
+            return write(target, o.gzip, ascii("Account,Owner,Balance,Frozen\n"), m, false, unit -> {
+                Out out = new Out(unit.size() * 48);
+                for (Slice s : unit) {
+                    BankAccount a = s.account;
+                    out.putLong(a.getAccountNumber()).put(',').putCsv(a.getOwner()).put(',').putCents(a.getBalance()).put(',').putAscii(a.isFrozen() ? "true" : "false").put('\n');
+                }
+                return new Encoded(out.buf, out.len, 0);
+            });
+        }
+
+        /** Writes every transaction of every account, in account order, within the date range. */
+        static Summary ledger(AccountManager m, Path target, Options o) throws IOException {
+            if (o.format == Format.COLUMNAR) {
+                ByteBuffer h = ByteBuffer.allocate(28).putLong(MAGIC).putInt(VERSION).putLong(o.from).putLong(o.to);
+                return write(target, o.gzip, h.array(), m, true, unit -> columnar(unit, o));
+            }
+            return write(target, o.gzip, ascii("account,time,type,amount,counterparty,note\n"), m, true, unit -> csv(unit, o));
+        }
+
+        private static Encoded csv(java.util.List<Slice> unit, Options o) {
+            Out out = new Out(64 * 1024);
+            TimeFormat time = new TimeFormat();
+            int[] entries = new int[1];
+            for (Slice s : unit) {
+                long acct = s.account.getAccountNumber();
+                s.account.log.forEach(s.from, s.to, (ts, code, amount, cp) -> {
+                    if (ts < o.from || ts >= o.to) return;
+                    Transaction.Type type = TransactionLog.type(code);
+                    out.putLong(acct).put(',');
+                    time.append(out, ts);
+                    out.put(',').putAscii(type.name()).put(',').putCents(amount).put(',');
+                    if (cp != 0) out.putLong(cp);
+                    out.put(',');
+                    switch (type) {
+                        case DEPOSIT: out.putAscii((code & TransactionLog.OPENING) != 0 ? "Initial deposit" : "Deposit"); break;
+                        case WITHDRAWAL: out.putAscii("Withdrawal"); break;
+                        case TRANSFER_IN: out.putAscii("Transfer from ").putLong(cp); break;
+                        default: out.putAscii("Transfer to ").putLong(cp);
+                    }
+                    out.put('\n');
+                    entries[0]++;
+                });
+            }
+            return new Encoded(out.buf, out.len, entries[0]);
+        }
+
+        private static Encoded columnar(java.util.List<Slice> unit, Options o) {
+            Out out = new Out(64 * 1024);
+            int total = 0;
+            for (Slice s : unit) {
+                int n = s.to - s.from;
+                long[] ts = new long[n], amounts = new long[n], cps = new long[n];
+                byte[] codes = new byte[n];
+                int[] kept = new int[1];
+                s.account.log.forEach(s.from, s.to, (t, code, amount, cp) -> {
+                    if (t < o.from || t >= o.to) return;
+                    int k = kept[0]++;
+                    ts[k] = t; codes[k] = code; amounts[k] = amount; cps[k] = cp;
+                });
+                int k = kept[0];
+                if (k == 0) continue;
+                out.ensure(12 + 25 * k);
+                ByteBuffer b = ByteBuffer.wrap(out.buf, out.len, 12 + 25 * k);
+                b.putLong(s.account.getAccountNumber()).putInt(k);
+                for (int i = 0; i < k; i++) b.putLong(ts[i]);
+                b.put(codes, 0, k);
+                for (int i = 0; i < k; i++) b.putLong(amounts[i]);
+                for (int i = 0; i < k; i++) b.putLong(cps[i]);
+                out.len += 12 + 25 * k;
+                total += k;
+            }
+            return new Encoded(out.buf, out.len, total);
+        }
+
+        /**
+         * Plans units over the accounts in account-number order, encodes them a wave at a time in
+         * parallel and appends them to {@code target} in order, after {@code header}.
+         */
+        private static Summary write(Path target, boolean gzip, byte[] header, AccountManager m, boolean byEntries,
+                                     java.util.function.Function<java.util.List<Slice>, Encoded> encoder) throws IOException {
+            BankAccount[] all = m.listAllAccounts().toArray(new BankAccount[0]);
+            Arrays.parallelSort(all, Comparator.comparingLong(BankAccount::getAccountNumber));
+            int wave = 2 * Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+            Summary summary = new Summary();
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                summary.bytes += write(ch, gzip ? gzip(header, header.length) : header, gzip ? -1 : header.length);
+                int next = 0, offset = 0; // next account, and entry within it, to plan
+                while (next < all.length) {
+                    java.util.List<java.util.List<Slice>> units = new ArrayList<>(wave);
+                    while (units.size() < wave && next < all.length) {
+                        java.util.List<Slice> unit = new ArrayList<>();
+                        int entries = 0;
+                        while (next < all.length && unit.size() < UNIT_ACCOUNTS && entries < UNIT_ENTRIES) {
+                            BankAccount a = all[next];
+                            int size = byEntries ? a.log.size() : 0;
+                            int to = (int) Math.min(size, (long) offset + UNIT_ENTRIES - entries);
+                            unit.add(new Slice(a, offset, to));
+                            entries += to - offset;
+                            if (to < size) offset = to; else { next++; offset = 0; }
+                        }
+                        units.add(unit);
+                    }
+                    Encoded[] encoded = new Encoded[units.size()];
+                    IntStream.range(0, encoded.length).parallel().forEach(i -> {
+                        Encoded e = encoder.apply(units.get(i));
+                        encoded[i] = gzip ? new Encoded(gzip(e.bytes, e.length), -1, e.entries) : e;
+                    });
+                    for (Encoded e : encoded) {
+                        summary.bytes += write(ch, e.bytes, e.length);
+                        summary.entries += e.entries;
+                    }
+                }
+                summary.accounts = all.length;
+                ch.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            return summary;
+        }
+
+        /** Writes {@code length} bytes (all of them if negative). */
+        private static long write(FileChannel ch, byte[] bytes, int length) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(bytes, 0, length < 0 ? bytes.length : length);
+            long n = b.remaining();
+            while (b.hasRemaining()) ch.write(b);
+            return n;
+        }
+
+        private static byte[] gzip(byte[] bytes, int length) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+            try (java.util.zip.GZIPOutputStream z = new java.util.zip.GZIPOutputStream(out, 64 * 1024)) {
+                z.write(bytes, 0, length);
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+            return out.toByteArray();
+        }
+
+        private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+
+        /** The accounts file for a chosen name: .gz is appended when compressing. */
+        static Path accountsPath(Path chosen, Options o) {
+            return o.gzip && !chosen.toString().endsWith(".gz") ? chosen.resolveSibling(chosen.getFileName() + ".gz") : chosen;
+        }
+
+        /** The ledger file written next to an accounts export: name-ledger.csv or name-ledger.bin, plus .gz. */
+        static Path ledgerPath(Path accounts, Options o) {
+            String name = accounts.getFileName().toString();
+            if (name.endsWith(".gz")) name = name.substring(0, name.length() - 3);
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) name = name.substring(0, dot);
+            return accounts.resolveSibling(name + "-ledger" + (o.format == Format.COLUMNAR ? ".bin" : ".csv") + (o.gzip ? ".gz" : ""));
+        }
+
+        /** Start of a local yyyy-MM-dd in epoch millis. */
+        static long startOfDay(String date) {
+            return java.time.LocalDate.parse(date.trim()).atStartOfDay(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+
+        /** Start of the day after a local yyyy-MM-dd, which is not always 24 hours later (daylight saving). */
+        static long endOfDay(String date) {
+            return java.time.LocalDate.parse(date.trim()).plusDays(1).atStartOfDay(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+
+        /** Entry point for {@code --export file [--ledger] [--columnar] [--gzip] [--from date] [--to date] [--data file]}. */
+        static void run(String[] args) throws Exception {
+            Options o = new Options();
+            String target = null, data = DATA_FILE;
+            boolean ledger = false;
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--ledger": ledger = true; break;
+                    case "--columnar": o.format = Format.COLUMNAR; break;
+                    case "--gzip": o.gzip = true; break;
+                    case "--from": o.from = startOfDay(args[++i]); break;
+                    case "--to": o.to = endOfDay(args[++i]); break;
+                    case "--data": data = args[++i]; break;
+                    default: target = args[i];
+                }
+            }
+            if (target == null) { System.err.println("usage: --export <accounts file> [--ledger] [--columnar] [--gzip] [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--data file]"); return; }
+            AccountManager m = data.equals(DATA_FILE) ? AccountManager.open(data, LEGACY_DATA_FILE) : AccountManager.loadFromFile(data);
+            try {
+                long start = System.nanoTime();
+                Path accounts = accountsPath(Paths.get(target), o);
+                System.out.println(accounts + ": " + accounts(m, accounts, o));
+                if (ledger) {
+                    Path l = ledgerPath(accounts, o);
+                    System.out.println(l + ": " + ledger(m, l, o));
+                }
+                System.out.printf("done in %.3fs%n", (System.nanoTime() - start) / 1e9);
+            } finally { m.close(); }
+        }
+
+        /** Growable byte buffer with the few text encoders the export needs. */
+        private static final class Out {
+            byte[] buf;
+            int len;
+
+            Out(int capacity) { buf = new byte[Math.max(64, capacity)]; }
+
+            Out ensure(int n) {
+                if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+                return this;
+            }
+
+            Out put(char c) { ensure(1).buf[len++] = (byte) c; return this; }
+
+            Out putAscii(String s) {
+                ensure(s.length());
+                for (int i = 0; i < s.length(); i++) buf[len++] = (byte) s.charAt(i);
+                return this;
+            }
+
+            Out putLong(long v) {
+                if (v == Long.MIN_VALUE) return putAscii(Long.toString(v));
+                ensure(20);
+                if (v < 0) { buf[len++] = '-'; v = -v; }
+                int end = len + 1;
+                for (long t = v; t >= 10; t /= 10) end++;
+                for (int i = end - 1; i >= len; i--) { buf[i] = (byte) ('0' + v % 10); v /= 10; }
+                len = end;
+                return this;
+            }
+
+            Out putCents(long cents) {
+                long whole = cents / 100;
+                int frac = (int) Math.abs(cents % 100);
+                if (cents < 0 && whole == 0) put('-');
+                putLong(whole).put('.');
+                return put((char) ('0' + frac / 10)).put((char) ('0' + frac % 10));
+            }
+
+            Out pad(int v, int digits) {
+                ensure(digits);
+                for (int i = len + digits - 1; i >= len; i--) { buf[i] = (byte) ('0' + v % 10); v /= 10; }
+                len += digits;
+                return this;
+            }
+
+            /** A CSV field, quoted when it contains a separator, quote or line break. */
+            Out putCsv(String s) {
+                boolean quote = false;
+                for (int i = 0; i < s.length() && !quote; i++) { char c = s.charAt(i); quote = c == ',' || c == '"' || c == '\n' || c == '\r'; }
+                byte[] b = (quote ? '"' + s.replace("\"", "\"\"") + '"' : s).getBytes(StandardCharsets.UTF_8);
+                ensure(b.length);
+                System.arraycopy(b, 0, buf, len, b.length);
+                len += b.length;
+                return this;
+            }
+        }
+
+        /**
+         * Formats epoch millis as local "yyyy-MM-dd HH:mm:ss.SSS". The date and UTC offset are
+         * looked up once and reused until the next local midnight or offset change, so sorted
+         * timestamps cost a few divisions each. Not thread-safe; one per worker.
+         */
+        private static final class TimeFormat {
+            private final java.time.zone.ZoneRules rules = java.time.ZoneId.systemDefault().getRules();
+            private long start = 1, end = 0; // [start, end) shares the cached date and offset
+            private long midnight;           // local midnight of the cached date, in UTC millis
+            private byte[] date;             // "yyyy-MM-dd "
+
+            void append(Out out, long millis) {
+                if (millis < start || millis >= end) reset(millis);
+                long ms = millis - midnight;
+                int h = (int) (ms / 3_600_000), min = (int) (ms / 60_000 % 60), sec = (int) (ms / 1000 % 60);
+                out.ensure(date.length);
+                System.arraycopy(date, 0, out.buf, out.len, date.length);
+                out.len += date.length;
+                out.pad(h, 2).put(':').pad(min, 2).put(':').pad(sec, 2).put('.').pad((int) (ms % 1000), 3);
+            }
+
+            private void reset(long millis) {
+                java.time.Instant at = java.time.Instant.ofEpochMilli(millis);
+                java.time.ZoneOffset offset = rules.getOffset(at);
+                java.time.LocalDate day = java.time.LocalDateTime.ofInstant(at, offset).toLocalDate();
+                long offsetMillis = offset.getTotalSeconds() * 1000L;
+                midnight = day.toEpochDay() * 86_400_000L - offsetMillis;
+                date = ascii(day + " ");
+                java.time.zone.ZoneOffsetTransition next = rules.nextTransition(at);
+                start = millis;
+                end = Math.min(midnight + 86_400_000L, next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000);
+            }
+        }
+    }
+
+    // ----------------- Persistence -----------------
+
+    /**
+     * Takes snapshots on a background thread. Changes are coalesced: a snapshot is queued once the
+     * journal holds {@code threshold} records, otherwise every {@code intervalSeconds} if anything
+     * changed, and never more than one is waiting. Progress and failures are reported to
+     * {@code status}. Defaults come from -Dbank.snapshot.interval and -Dbank.snapshot.threshold.
+     */
+    static final class SnapshotScheduler {
+        static final long INTERVAL_SECONDS = Long.getLong("bank.snapshot.interval", 30);
+        static final int THRESHOLD = Integer.getInteger("bank.snapshot.threshold", AccountManager.SNAPSHOT_INTERVAL);
+
+        private final AccountManager manager;
+        private final String filename;
+        private final int threshold;
+        private final java.util.function.Consumer<String> status;
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bank-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        private CompletableFuture<Void> pending;   // queued, not yet started
+        private CompletableFuture<Void> finalSave; // set by shutdown()
+
+        SnapshotScheduler(AccountManager manager, String filename, long intervalSeconds, int threshold, java.util.function.Consumer<String> status) {
+            this.manager = manager;
+            this.filename = filename;
+            this.threshold = threshold;
+            this.status = status;
+            executor.scheduleWithFixedDelay(() -> { if (manager.pendingRecords() > 0) saveNow(); }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        /** Called after each change; queues a snapshot once enough has accumulated. */
+        void changed() { if (manager.pendingRecords() >= threshold) saveNow(); }
+
+        /** Queues a snapshot, or joins the one already waiting. */
+        synchronized CompletableFuture<Void> saveNow() {
+            if (finalSave != null) return finalSave;
+            if (pending == null) {
+                CompletableFuture<Void> f = pending = new CompletableFuture<>();
+                executor.execute(() -> run(f));
+            }
+            return pending;
+        }
+
+        /** Queues a final snapshot and stops; the future completes once it is on disk. */
+        synchronized CompletableFuture<Void> shutdown() {
+            if (finalSave == null) {
+                finalSave = saveNow();
+                executor.shutdown();
+            }
+            return finalSave;
+        }
+
+        private void run(CompletableFuture<Void> f) {
+            synchronized (this) { if (pending == f) pending = null; } // later changes queue another
+            status.accept("Saving...");
+            try {
+                long start = System.nanoTime();
+                manager.saveToFile(filename);
+                status.accept(String.format("Saved %,d accounts at %tT (%d ms)", manager.listAllAccounts().size(), new Date(), (System.nanoTime() - start) / 1_000_000));
+                f.complete(null);
+            } catch (Exception | Error e) {
+                status.accept("Save failed: " + e.getMessage());
+                f.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Binary snapshot of the account index: balances, metadata, history chunk references and any
+     * history not yet in the history file. Accounts are stored in blocks of up to
+     * {@link #BLOCK_ACCOUNTS}, each with its own CRC, followed by an index of the blocks; blocks
+     * are encoded and decoded in parallel, so startup scales with cores rather than one stream.
+     *
+     * Layout: header (magic, version, block count, journal seq, next account number, history
+     * generation, account count, index offset, archive segments) | blocks | index (offset, length,
+     * accounts, crc). Version 2 added the archive segment count and, per account, how many of its
+     * chunk entries are archived.
+     * A sharded bank writes one snapshot per shard, tied together by a manifest at the data file
+     * path: magic, version, shard count, account numbers per range, next account number.
+     */
+    static final class SnapshotFile {
+        static final long MAGIC = 0x42414E4B534E4150L; // "BANKSNAP"
+        static final int VERSION = 2;
+        static final int HEADER_SIZE = 64;
+        static final int INDEX_ENTRY = 20;
+        static final int BLOCK_ACCOUNTS = 4096;
+        static final long MANIFEST_MAGIC = 0x42414E4B53485244L; // "BANKSHRD"
+        static final int MANIFEST_VERSION = 1;
+        static final int MANIFEST_SIZE = 28;
+
+        private SnapshotFile() {}
+
+        static final class Manifest {
+            final int shards;
+            final long nextAccount;
+
+            Manifest(int shards, long nextAccount) {
+                this.shards = shards;
+                this.nextAccount = nextAccount;
+            }
+        }
+
+        static boolean isManifest(Path path) throws IOException {
+            if (!Files.exists(path) || Files.size(path) != MANIFEST_SIZE) return false;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                return readFully(ch, 0, 8).getLong() == MANIFEST_MAGIC;
+            }
+        }
+
+        /** Writes and fsyncs a manifest for {@code shards} shard files. */
+        static void writeManifest(Path path, int shards, int range, long nextAccount) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(MANIFEST_SIZE).putLong(MANIFEST_MAGIC).putInt(MANIFEST_VERSION)
+                    .putInt(shards).putInt(range).putLong(nextAccount);
+            b.clear();
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(ch, b, 0);
+                ch.force(true);
+            }
+        }
+
+        static Manifest readManifest(Path path) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer b = readFully(ch, 0, MANIFEST_SIZE);
+                if (b.getLong() != MANIFEST_MAGIC) throw new IOException("Not a bank manifest: " + path);
+                int version = b.getInt();
+                if (version != MANIFEST_VERSION) throw new IOException("Unsupported manifest version " + version + ": " + path);
+                int shards = b.getInt(), range = b.getInt();
+                if (shards < 1 || range != AccountManager.SHARD_RANGE) throw new IOException("Unsupported shard layout " + shards + "x" + range + ": " + path);
+                return new Manifest(shards, b.getLong());
+            }
+        }
+
+        static boolean isSnapshot(Path path) throws IOException {
+            if (!Files.exists(path) || Files.size(path) < HEADER_SIZE) return false;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                return readFully(ch, 0, 8).getLong() == MAGIC;
+            }
+        }
+
+        /** What a snapshot records, captured under its shard's write lock so it can be written without it. */
+        static final class Cut {
+            final long journalSeq, nextAccount, historyGeneration, archiveSegments;
+            final BankAccount[] accounts;
+            final long[] balances;
+            final boolean[] frozen;
+            final HistoryStore.Chunk[][] chunks;
+            final int[] skipped;
+
+            Cut(long journalSeq, long nextAccount, long historyGeneration, long archiveSegments, BankAccount[] accounts) {
+                this.journalSeq = journalSeq;
+                this.nextAccount = nextAccount;
+                this.historyGeneration = historyGeneration;
+                this.archiveSegments = archiveSegments;
+                this.accounts = accounts;
+                balances = new long[accounts.length];
+                frozen = new boolean[accounts.length];
+                chunks = new HistoryStore.Chunk[accounts.length][];
+                skipped = new int[accounts.length];
+            }
+        }
+
+        /** Captures {@code shard}; the caller holds its write lock and has checkpointed every log. */
+        static Cut capture(AccountManager.Shard shard, long journalSeq, long nextAccount) {
+            Cut cut = new Cut(journalSeq, nextAccount, shard.historyGeneration, shard.archive == null ? 0 : shard.archive.segments(),
+                    shard.accounts.values().toArray(new BankAccount[0]));
+            for (int i = 0; i < cut.accounts.length; i++) {
+                BankAccount a = cut.accounts[i];
+                cut.balances[i] = a.balance;
+                cut.frozen[i] = a.frozen;
+                cut.chunks[i] = a.log.chunks();
+                cut.skipped[i] = a.log.skipped();
+            }
+            return cut;
+        }
+
+        /** Writes and fsyncs {@code cut}. */
+        static void write(Path path, Cut cut) throws IOException {
+            int total = cut.accounts.length;
+            int blocks = (total + BLOCK_ACCOUNTS - 1) / BLOCK_ACCOUNTS;
+            int wave = 4 * Math.max(1, ForkJoinPool.getCommonPoolParallelism()); // bounds blocks held in memory
+            ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_ENTRY);
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long pos = HEADER_SIZE;
+                for (int first = 0; first < blocks; first += wave) {
+                    int f = first;
+                    ByteBuffer[] encoded = new ByteBuffer[Math.min(wave, blocks - first)];
+                    IntStream.range(0, encoded.length).parallel().forEach(b -> encoded[b] = encodeBlock(cut, (f + b) * BLOCK_ACCOUNTS));
+                    for (ByteBuffer block : encoded) {
+                        CRC32 crc = new CRC32();
+                        crc.update(block.array(), 0, block.limit());
+                        int accounts = block.getInt(0);
+                        index.putLong(pos).putInt(block.limit()).putInt(accounts).putInt((int) crc.getValue());
+                        pos = writeFully(ch, block, pos);
+                    }
+                }
+                long indexOffset = pos;
+                index.flip();
+                writeFully(ch, index, pos);
+                ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+                h.putLong(MAGIC).putInt(VERSION).putInt(blocks).putLong(cut.journalSeq).putLong(cut.nextAccount)
+                        .putLong(cut.historyGeneration).putLong(total).putLong(indexOffset).putLong(cut.archiveSegments);
+                h.clear();
+                writeFully(ch, h, 0);
+                ch.force(true);
+            }
+        }
+
+        /** Reads a snapshot into the empty shard {@code m}; returns the journal sequence it covers. */
+        static long read(Path path, AccountManager.Shard m) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer h = readFully(ch, 0, HEADER_SIZE);
+                if (h.getLong() != MAGIC) throw new IOException("Not a bank snapshot: " + path);
+                int version = h.getInt();
+                if (version < 1 || version > VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + path);
+                int blocks = h.getInt();
+                long seq = m.snapshotSeq = h.getLong();
+                m.nextAccount = h.getLong();
+                m.historyGeneration = h.getLong();
+                long count = h.getLong();
+                m.accounts = new ConcurrentHashMap<>((int) Math.min(count + count / 3 + 1, 1 << 30));
+                ByteBuffer index = readFully(ch, h.getLong(), blocks * INDEX_ENTRY);
+                m.archiveSegments = h.getLong(); // zero in version 1
+                try {
+                    IntStream.range(0, blocks).parallel().forEach(b -> {
+                        int at = b * INDEX_ENTRY;
+                        try {
+                            ByteBuffer block = readFully(ch, index.getLong(at), index.getInt(at + 8));
+                            CRC32 crc = new CRC32();
+                            crc.update(block.array(), 0, block.limit());
+                            if ((int) crc.getValue() != index.getInt(at + 16) || block.getInt() != index.getInt(at + 12)) {
+                                throw new IOException("Corrupt snapshot block " + b + ": " + path);
+                            }
+                            for (int i = index.getInt(at + 12); i > 0; i--) {
+                                BankAccount a = decodeAccount(block, version);
+                                m.accounts.put(a.accountNumber, a);
+                            }
+                        } catch (IOException e) { throw new UncheckedIOException(e); }
+                    });
+                } catch (UncheckedIOException e) { throw e.getCause(); }
+                if (m.accounts.size() != count) throw new IOException("Snapshot holds " + m.accounts.size() + " of " + count + " accounts: " + path);
+                return seq;
+            }
+        }
+
+        /**
+         * Encodes up to {@link #BLOCK_ACCOUNTS} accounts starting at {@code from}, prefixed by their
+         * count. The history tail is always empty here, since logs are checkpointed before a cut.
+         */
+        private static ByteBuffer encodeBlock(Cut cut, int from) {
+            int to = Math.min(cut.accounts.length, from + BLOCK_ACCOUNTS);
+            byte[][] owners = new byte[to - from][], pins = new byte[to - from][];
+            int size = 4;
+            for (int i = from; i < to; i++) {
+                BankAccount a = cut.accounts[i];
+                owners[i - from] = a.owner.getBytes(StandardCharsets.UTF_8);
+                pins[i - from] = a.pin.encoded().getBytes(StandardCharsets.UTF_8);
+                size += 8 + 8 + 1 + 4 + owners[i - from].length + 4 + pins[i - from].length + 4 + 12 * cut.chunks[i].length + 4 + 4;
+            }
+            ByteBuffer b = ByteBuffer.allocate(size).putInt(to - from);
+            for (int i = from; i < to; i++) {
+                b.putLong(cut.accounts[i].accountNumber).putLong(cut.balances[i]).put((byte) (cut.frozen[i] ? 1 : 0));
+                b.putInt(owners[i - from].length).put(owners[i - from]);
+                b.putInt(pins[i - from].length).put(pins[i - from]);
+                b.putInt(cut.chunks[i].length);
+                for (HistoryStore.Chunk c : cut.chunks[i]) b.putLong(c.offset).putInt(c.count);
+                b.putInt(cut.skipped[i]).putInt(0);
+            }
+            b.flip();
+            return b;
+        }
+
+        private static BankAccount decodeAccount(ByteBuffer b, int version) {
+            long number = b.getLong(), balance = b.getLong();
+            boolean frozen = b.get() != 0;
+            BankAccount a = new BankAccount(string(b), number, string(b));
+            a.balance = balance;
+            a.frozen = frozen;
+            a.log.decode(b, version);
+            return a;
+        }
+
+        private static String string(ByteBuffer b) {
+            int n = b.getInt();
+            String s = new String(b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8);
+            b.position(b.position() + n);
+            return s;
+        }
+
+        private static ByteBuffer readFully(FileChannel ch, long pos, int n) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(n);
+            while (b.hasRemaining()) {
+                if (ch.read(b, pos + b.position()) < 0) throw new EOFException("Truncated snapshot");
+            }
+            b.flip();
+            return b;
+        }
+
+        private static long writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+            while (b.hasRemaining()) pos += ch.write(b, pos);
+            return pos;
+        }
+    }
+
+
+    /**
+     * Transaction history on disk, shared by all accounts ({@code <data file>.hist.<generation>}).
+     * Each snapshot appends an account's new entries as one columnar chunk (timestamps, amounts,
+     * counterparties, type codes); accounts keep only (offset, count) references, so startup reads
+     * balances and metadata and history is paged in on demand through memory-mapped windows.
+     * A chunk never straddles a window. When most of the file is garbage from merged chunks, the
+     * next snapshot rewrites everything into a new generation; the old one is deleted only after
+     * the snapshot that stops referencing it is on disk.
+     */
+    static final class HistoryStore implements Closeable {
+        static final int MAGIC = 0x42414E48; // "BANH"
+        static final int VERSION = 1;
+        static final int HEADER_SIZE = 8;
+        static final long WINDOW = 1L << 30;
+        static final int MAX_CHUNKS = 8;
+        static final int MAX_CHUNK_ENTRIES = (int) (WINDOW / 25);
+
+        /** A run of one account's entries, stored column by column. */
+        static final class Chunk {
+            final long offset;
+            final int count;
+            private ByteBuffer data; // mapped lazily on first read
+
+            Chunk(long offset, int count) {
+                this.offset = offset;
+                this.count = count;
+            }
+
+            /** Bytes reserved in the file, padded so the next chunk's long columns stay aligned. */
+            long span() { return (25L * count + 7) & ~7L; }
+
+            private ByteBuffer data(HistoryStore store) {
+                if (data == null) data = store.slice(offset, 25L * count);
+                return data;
+            }
+
+            long timestamp(HistoryStore s, int i) { return data(s).getLong(i * 8); }
+            long amount(HistoryStore s, int i) { return data(s).getLong((count + i) * 8); }
+            long counterparty(HistoryStore s, int i) { return data(s).getLong((2 * count + i) * 8); }
+            byte code(HistoryStore s, int i) { return data(s).get(24 * count + i); }
+        }
+
+        final String dataFile;
+        final long generation;
+        private final FileChannel channel;
+        private final java.util.List<MappedByteBuffer> windows = new ArrayList<>();
+        private final ByteBuffer staging = ByteBuffer.allocateDirect(64 * 1024);
+        private long end;
+        private long live;
+
+        private HistoryStore(String dataFile, long generation, FileChannel channel, long end) {
+            this.dataFile = dataFile;
+            this.generation = generation;
+            this.channel = channel;
+            this.end = end;
+        }
+
+        static Path pathFor(String dataFile, long generation) { return Paths.get(dataFile + ".hist." + generation); }
+
+        static HistoryStore open(String dataFile, long generation) throws IOException {
+            FileChannel ch = FileChannel.open(pathFor(dataFile, generation), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            ch.read(h, 0);
+            h.flip();
+            if (h.remaining() < HEADER_SIZE || h.getInt() != MAGIC || h.getInt() != VERSION) {
+                ch.close();
+                throw new IOException("Unrecognized history file " + pathFor(dataFile, generation));
+            }
+            return new HistoryStore(dataFile, generation, ch, (ch.size() + 7) & ~7L);
+        }
+
+        /** Starts a new, empty generation (skipping numbers whose files already exist). */
+        static HistoryStore create(String dataFile, long generation) throws IOException {
+            while (Files.exists(pathFor(dataFile, generation))) generation++;
+            FileChannel ch = FileChannel.open(pathFor(dataFile, generation), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ch.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip(), 0);
+            return new HistoryStore(dataFile, generation, ch, HEADER_SIZE);
+        }
+
+        /** Deletes history generations of {@code dataFile} other than {@code keep}. */
+        static void deleteStale(String dataFile, long keep) throws IOException {
+            Path base = Paths.get(dataFile).toAbsolutePath();
+            String prefix = base.getFileName() + ".hist.";
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(base.getParent(), prefix + "*")) {
+                for (Path p : dir) {
+                    if (!p.getFileName().toString().equals(prefix + keep)) Files.deleteIfExists(p);
+                }
+            }
+        }
+
+        /** Appends entries [from, to) of {@code log} as chunks; the caller holds the log's monitor. */
+        synchronized void write(TransactionLog log, int from, int to, java.util.List<Chunk> out) throws IOException {
+            while (from < to) {
+                int n = Math.min(to - from, MAX_CHUNK_ENTRIES);
+                Chunk c = new Chunk(end, n);
+                if (end / WINDOW != (end + c.span() - 1) / WINDOW) c = new Chunk((end / WINDOW + 1) * WINDOW, n);
+                long pos = c.offset;
+                for (int i = from; i < from + n; i++) { if (staging.remaining() < 8) pos = drain(pos); staging.putLong(log.rawTimestamp(i)); }
+                for (int i = from; i < from + n; i++) { if (staging.remaining() < 8) pos = drain(pos); staging.putLong(log.rawAmount(i)); }
+                for (int i = from; i < from + n; i++) { if (staging.remaining() < 8) pos = drain(pos); staging.putLong(log.rawCounterparty(i)); }
+                for (int i = from; i < from + n; i++) { if (!staging.hasRemaining()) pos = drain(pos); staging.put(log.rawCode(i)); }
+                drain(pos);
+                out.add(c);
+                end = c.offset + c.span();
+                from += n;
+            }
+        }
+
+        private long drain(long pos) throws IOException {
+            staging.flip();
+            while (staging.hasRemaining()) pos += channel.write(staging, pos);
+            staging.clear();
+            return pos;
+        }
+
+        synchronized void force() throws IOException { channel.force(false); }
+
+        /** Records how many bytes accounts still reference, for the compaction decision. */
+        synchronized void liveBytes(long live) { this.live = live; }
+
+        synchronized boolean needsCompaction() { return end - HEADER_SIZE > 2 * live + (16 << 20); }
+
+        private synchronized ByteBuffer slice(long offset, long length) {
+            try {
+                int w = (int) (offset / WINDOW);
+                long base = w * WINDOW;
+                while (windows.size() <= w) windows.add(null);
+                MappedByteBuffer m = windows.get(w);
+                if (m == null || m.capacity() < offset + length - base) {
+                    m = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW, channel.size() - base));
+                    windows.set(w, m);
+                }
+                ByteBuffer b = m.duplicate();
+                b.limit((int) (offset + length - base)).position((int) (offset - base));
+                return b.slice();
+            } catch (IOException e) { throw new UncheckedIOException("History read failed", e); }
+        }
+
+        @Override
+        public synchronized void close() throws IOException { channel.close(); }
+    }
+
+    /**
+     * Archived transaction history of one shard: immutable segment files
+     * ({@code <shard file>.archive.<id>}) holding the entries that fell out of the retention window
+     * (-Dbank.history.retentionDays; 0, the default, keeps everything in the history file).
+     * Archiving runs with a snapshot once the window has crossed into a new month and takes whole
+     * months, so an account gains at most one run per month. A run is one account's columns,
+     * deflated on their own, so an old statement inflates only that run; recently read runs are
+     * cached. The index at the end lists each run with the account's monthly rollups, which is all
+     * a load reads. Layout: runs | index (account, offset, length, count, months, rollups) |
+     * footer (index offset, index length, cutoff, index crc, magic).
+     *
+     * A segment is written before the snapshot that records it; one newer than its shard's
+     * snapshot was cut short by a crash, its entries are still in the history file, and it is
+     * deleted on load.
+     */
+    static final class HistoryArchive {
+        static final long MAGIC = 0x42414E4B41524348L; // "BANKARCH"
+        static final int FOOTER_SIZE = 32;
+        static final int RETENTION_DAYS = Integer.getInteger("bank.history.retentionDays", 0);
+        static final int ROLLUP = 8; // longs per month: yyyymm, opening balance, counts (two per long), totals
+        static final long CACHE_ENTRIES = 1 << 20;
+        private static final ZoneId ZONE = ZoneId.systemDefault(); // months as on statements
+
+        /** One account's inflated run. */
+        static final class Run {
+            final int count;
+            final long[] timestamps, amounts, counterparties;
+            final byte[] codes;
+
+            Run(ByteBuffer b, int count) {
+                this.count = count;
+                timestamps = new long[count];
+                amounts = new long[count];
+                counterparties = new long[count];
+                codes = new byte[count];
+                b.asLongBuffer().get(timestamps);
+                b.position(8 * count).asLongBuffer().get(amounts);
+                b.position(16 * count).asLongBuffer().get(counterparties);
+                b.position(24 * count).get(codes);
+            }
+
+            Transaction get(int j) {
+                return new Transaction(timestamps[j], TransactionLog.type(codes[j]), amounts[j], counterparties[j], (codes[j] & TransactionLog.OPENING) != 0);
+            }
+        }
+
+        private String file;     // the shard file the segments are named after
+        private long segments;   // segments 1..segments are recorded by the shard's snapshot
+        private long cutoff;     // entries before this instant have been archived
+        private long cached;     // entries held by the cache
+        private final LinkedHashMap<Map.Entry<Long, Long>, Run> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+        HistoryArchive(String file) { this.file = file; }
+
+        static Path pathFor(String file, long segment) { return Paths.get(file + ".archive." + segment); }
+
+        synchronized long segments() { return segments; }
+
+        /** The instant before which entries are archived now: the start of the month the window begins in. */
+        static long cutoff(long now) {
+            YearMonth month = YearMonth.from(Instant.ofEpochMilli(now).minus(java.time.Duration.ofDays(RETENTION_DAYS)).atZone(ZONE));
+            return month.atDay(1).atStartOfDay(ZONE).toInstant().toEpochMilli();
+        }
+
+        /** Whether an archiving pass is due; once per cutoff, since a pass takes whole months. */
+        synchronized boolean due(long cutoff) { return RETENTION_DAYS > 0 && cutoff > this.cutoff; }
+
+        /**
+         * Reads the indexes of the segments {@code shardFile}'s snapshot recorded (up to
+         * {@code segments}) into its accounts' logs, and deletes newer ones.
+         */
+        static HistoryArchive open(String shardFile, long segments, Map<Long, BankAccount> accounts) throws IOException {
+            HistoryArchive archive = new HistoryArchive(shardFile);
+            archive.segments = segments;
+            Path base = Paths.get(shardFile).toAbsolutePath();
+            String prefix = base.getFileName() + ".archive.";
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(base.getParent(), prefix + "*")) {
+                for (Path p : dir) {
+                    long id;
+                    try { id = Long.parseLong(p.getFileName().toString().substring(prefix.length())); }
+                    catch (NumberFormatException e) { id = Long.MAX_VALUE; } // an unfinished .tmp
+                    if (id > segments) Files.deleteIfExists(p);
+                }
+            }
+            for (long id = 1; id <= segments; id++) archive.readIndex(id, accounts);
+            return archive;
+        }
+
+        private void readIndex(long segment, Map<Long, BankAccount> accounts) throws IOException {
+            Path path = pathFor(file, segment);
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer f = read(ch, ch.size() - FOOTER_SIZE, FOOTER_SIZE);
+                long indexOffset = f.getLong();
+                int indexLength = f.getInt();
+                long segmentCutoff = f.getLong();
+                int crc = f.getInt();
+                if (f.getLong() != MAGIC) throw new IOException("Not a history archive: " + path);
+                ByteBuffer index = read(ch, indexOffset, indexLength);
+                CRC32 check = new CRC32();
+                check.update(index.array(), 0, indexLength);
+                if ((int) check.getValue() != crc) throw new IOException("Corrupt history archive index: " + path);
+                while (index.hasRemaining()) {
+                    long account = index.getLong(), offset = index.getLong();
+                    int length = index.getInt(), count = index.getInt();
+                    long[] rollups = new long[index.getInt() * ROLLUP];
+                    index.asLongBuffer().get(rollups);
+                    index.position(index.position() + 8 * rollups.length);
+                    BankAccount a = accounts.get(account);
+                    if (a == null) throw new IOException("History archive " + path + " has entries of unknown account " + account);
+                    a.log.addRun(this, segment, offset, length, count, rollups);
+                }
+                cutoff = Math.max(cutoff, segmentCutoff);
+            }
+        }
+
+        /**
+         * Writes the entries of {@code accounts} booked before {@code cutoff} to a new segment, then
+         * marks them archived in their logs. The caller holds the shard's write lock, so no account
+         * books anything meanwhile; nothing is marked unless the segment is on disk. Logs are
+         * locked without holding this archive's monitor, which their readers take after theirs.
+         */
+        void archive(Collection<BankAccount> accounts, long cutoff) throws IOException {
+            long segment;
+            Path path;
+            synchronized (this) {
+                segment = segments + 1;
+                path = pathFor(file, segment);
+            }
+            Path tmp = Paths.get(path + ".tmp");
+            java.util.List<BankAccount> moved = new ArrayList<>();
+            java.util.List<long[]> runs = new ArrayList<>(); // offset, length, count, then the rollups
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream ix = new DataOutputStream(index);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            byte[] buf = new byte[64 * 1024];
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long pos = 0;
+                for (BankAccount a : accounts) {
+                    byte[] columns;
+                    long[] rollups;
+                    TransactionLog log = a.log;
+                    synchronized (log) {
+                        int first = log.firstLive(), end = log.liveEnd(), to = first;
+                        while (to < end && log.rawTimestamp(to) < cutoff) to++;
+                        if (to == first) continue;
+                        long opening = a.balance;
+                        for (int p = first; p < end; p++) opening -= TransactionLog.effect(log.rawCode(p), log.rawAmount(p));
+                        rollups = rollup(log, first, to, opening);
+                        int n = to - first;
+                        ByteBuffer b = ByteBuffer.allocate(25 * n);
+                        for (int p = first; p < to; p++) b.putLong(log.rawTimestamp(p));
+                        for (int p = first; p < to; p++) b.putLong(log.rawAmount(p));
+                        for (int p = first; p < to; p++) b.putLong(log.rawCounterparty(p));
+                        for (int p = first; p < to; p++) b.put(log.rawCode(p));
+                        columns = b.array();
+                    }
+                    deflater.reset();
+                    deflater.setInput(columns);
+                    deflater.finish();
+                    long start = pos;
+                    while (!deflater.finished()) pos = write(ch, ByteBuffer.wrap(buf, 0, deflater.deflate(buf)), pos);
+                    int count = columns.length / 25;
+                    ix.writeLong(a.accountNumber);
+                    ix.writeLong(start);
+                    ix.writeInt((int) (pos - start));
+                    ix.writeInt(count);
+                    ix.writeInt(rollups.length / ROLLUP);
+                    for (long v : rollups) ix.writeLong(v);
+                    moved.add(a);
+                    long[] run = Arrays.copyOf(new long[] {start, pos - start, count}, 3 + rollups.length);
+                    System.arraycopy(rollups, 0, run, 3, rollups.length);
+                    runs.add(run);
+                }
+                if (!moved.isEmpty()) {
+                    byte[] ixBytes = index.toByteArray();
+                    CRC32 crc = new CRC32();
+                    crc.update(ixBytes);
+                    long indexOffset = pos;
+                    pos = write(ch, ByteBuffer.wrap(ixBytes), pos);
+                    ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE).putLong(indexOffset).putInt(ixBytes.length)
+                            .putLong(cutoff).putInt((int) crc.getValue()).putLong(MAGIC);
+                    footer.flip();
+                    write(ch, footer, pos);
+                    ch.force(true);
+                }
+            } finally {
+                deflater.end();
+            }
+            if (moved.isEmpty()) Files.deleteIfExists(tmp);
+            else Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                this.cutoff = cutoff;
+                if (!moved.isEmpty()) segments = segment;
+            }
+            for (int i = 0; i < moved.size(); i++) {
+                long[] run = runs.get(i);
+                moved.get(i).log.archived(this, segment, run[0], (int) run[1], (int) run[2], Arrays.copyOfRange(run, 3, run.length));
+            }
+            Metrics.ARCHIVED_ENTRIES.add(runs.stream().mapToLong(r -> r[2]).sum());
+        }
+
+        /** Copies the segments to the names of {@code newFile}, when the bank is saved under another name. */
+        synchronized void moveTo(String newFile) throws IOException {
+            for (long id = 1; id <= segments; id++) {
+                Files.copy(pathFor(file, id), pathFor(newFile, id), StandardCopyOption.REPLACE_EXISTING);
+            }
+            file = newFile;
+        }
+
+        /** Run {@code k} of {@code runs} (as kept by a TransactionLog), inflated or from the cache. */
+        synchronized Run run(long[] runs, int k) {
+            Map.Entry<Long, Long> key = new AbstractMap.SimpleImmutableEntry<>(runs[3 * k], runs[3 * k + 1]);
+            Run r = cache.get(key);
+            if (r != null) return r;
+            int length = (int) (runs[3 * k + 2] >>> 32), count = (int) runs[3 * k + 2];
+            long start = System.nanoTime();
+            try (FileChannel ch = FileChannel.open(pathFor(file, runs[3 * k]), StandardOpenOption.READ)) {
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(read(ch, runs[3 * k + 1], length).array());
+                    byte[] columns = new byte[25 * count];
+                    int n = 0;
+                    while (n < columns.length && !inflater.finished()) n += inflater.inflate(columns, n, columns.length - n);
+                    if (n != columns.length) throw new IOException("Truncated history archive run");
+                    r = new Run(ByteBuffer.wrap(columns), count);
+                } finally {
+                    inflater.end();
+                }
+            } catch (IOException | DataFormatException e) {
+                throw new UncheckedIOException("History archive read failed", e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+            Metrics.ARCHIVE_READ.since(start);
+            cache.put(key, r);
+            cached += count;
+            for (Iterator<Run> it = cache.values().iterator(); cached > CACHE_ENTRIES && cache.size() > 1; ) {
+                cached -= it.next().count;
+                it.remove();
+            }
+            return r;
+        }
+
+        /** Monthly rollups of raw entries [from, to) of {@code log}, whose balance before them was {@code opening}. */
+        static long[] rollup(TransactionLog log, int from, int to, long opening) {
+            long[] r = new long[0];
+            long monthStart = Long.MAX_VALUE, monthEnd = Long.MIN_VALUE, balance = opening;
+            int m = -ROLLUP;
+            for (int p = from; p < to; p++) {
+                long ts = log.rawTimestamp(p);
+                if (ts < monthStart || ts >= monthEnd) {
+                    YearMonth month = YearMonth.from(Instant.ofEpochMilli(ts).atZone(ZONE));
+                    monthStart = month.atDay(1).atStartOfDay(ZONE).toInstant().toEpochMilli();
+                    monthEnd = month.plusMonths(1).atDay(1).atStartOfDay(ZONE).toInstant().toEpochMilli();
+                    long key = month.getYear() * 100L + month.getMonthValue();
+                    if (m < 0 || r[m] != key) {
+                        m += ROLLUP;
+                        r = Arrays.copyOf(r, m + ROLLUP);
+                        r[m] = key;
+                        r[m + 1] = balance;
+                    }
+                }
+                byte code = log.rawCode(p);
+                long amount = log.rawAmount(p);
+                int t = code & 0x0f;
+                r[m + 2 + t / 2] += 1L << (t % 2 == 0 ? 32 : 0);
+                r[m + 4 + t] += amount;
+                balance += TransactionLog.effect(code, amount);
+            }
+            return r;
+        }
+
+        /** {@code a} followed by {@code b}, combining a month split across the two. */
+        static long[] merge(long[] a, long[] b) {
+            if (b.length == 0) return a;
+            if (a.length == 0) return b;
+            int shared = a[a.length - ROLLUP] == b[0] ? ROLLUP : 0;
+            long[] r = Arrays.copyOf(a, a.length + b.length - shared);
+            System.arraycopy(b, shared, r, a.length, b.length - shared);
+            for (int i = 2; i < shared; i++) r[a.length - ROLLUP + i] += b[i]; // counts and totals add up
+            return r;
+        }
+
+        static Statement statement(long[] r, int m) {
+            int[] counts = new int[4];
+            long[] totals = new long[4];
+            long closing = r[m + 1];
+            for (int t = 0; t < 4; t++) {
+                counts[t] = (int) (r[m + 2 + t / 2] >>> (t % 2 == 0 ? 32 : 0));
+                totals[t] = r[m + 4 + t];
+                closing += t == 0 || t == 2 ? totals[t] : -totals[t];
+            }
+            return new Statement(YearMonth.of((int) (r[m] / 100), (int) (r[m] % 100)), r[m + 1], closing, counts, totals);
+        }
+
+        private static ByteBuffer read(FileChannel ch, long pos, int n) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(n);
+            while (b.hasRemaining()) {
+                if (ch.read(b, pos + b.position()) < 0) throw new EOFException("Truncated history archive");
+            }
+            b.flip();
+            return b;
+        }
+
+        private static long write(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+            while (b.hasRemaining()) pos += ch.write(b, pos);
+            return pos;
+        }
+    }
+
+    /**
+     * Append-only write-ahead journal. Each mutation is one fixed-size record (account creations
+     * add a short owner/PIN-hash trailer, batch transfers their legs) written through a
+     * FileChannel; sync() is a group commit, so writers queued behind an in-flight fsync are
+     * covered by it instead of issuing their own.
+     * A record torn by a crash fails its CRC and is truncated on the next open.
+     */
+    static class Journal implements Closeable {
+        static final int MAGIC = 0x42414E4A; // "BANJ"
+        static final int VERSION = 2; // 1 stored amounts as double bits, 2 as cents
+        static final int HEADER_SIZE = 8;
+        static final int RECORD_SIZE = 56;
+        static final byte CREATE = 1, DEPOSIT = 2, WITHDRAW = 3, TRANSFER = 4, FREEZE = 5, UNFREEZE = 6, BATCH = 7;
+
+        /** A decoded record handed to the replay callback. */
+        static final class Record {
+            byte op;
+            long seq, timestamp, account, counterparty, amount;
+            String owner, pinHash;
+            long[] legs; // BATCH: from, to, amount of each leg
+        }
+
+        private final Path path;
+        private FileChannel channel;     // replaced when compaction moves a new file into place
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final CRC32 crc = new CRC32();
+        private final Object syncLock = new Object();
+        private long seq;
+        private long position;          // end of the last appended record
+        private long flushed;           // bytes handed to the channel
+        private volatile long durable;  // bytes known to be on disk
+        private int records;
+        private boolean upgraded;       // replayed an older format; must be reset before appending
+
+        private Journal(Path path, FileChannel channel, long position, long seq) {
+            this.path = path;
+            this.channel = channel;
+            this.position = this.flushed = this.durable = position;
+            this.seq = seq;
+        }
+
+        /** Opens (or creates) the journal, replaying every record newer than {@code afterSeq}. */
+        static Journal open(Path path, long afterSeq, java.util.function.Consumer<Record> sink) throws IOException {
+            Files.deleteIfExists(Paths.get(path + ".tmp")); // a compaction that never got moved into place
+            FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (ch.size() < HEADER_SIZE) {
+                    writeHeader(ch);
+                    return new Journal(path, ch, HEADER_SIZE, afterSeq);
+                }
+                ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+                ch.read(h, 0);
+                h.flip();
+                int version = h.getInt() == MAGIC ? h.getInt() : -1;
+                if (version < 1 || version > VERSION) throw new IOException("Unrecognized journal " + path);
+
+                long pos = HEADER_SIZE, last = afterSeq, prev = 0;
+                int replayed = 0;
+                ByteBuffer rec = ByteBuffer.allocate(RECORD_SIZE);
+                CRC32 crc = new CRC32();
+                while (true) {
+                    rec.clear();
+                    if (ch.read(rec, pos) < RECORD_SIZE) break;
+                    rec.flip();
+                    int len = rec.getInt(4);
+                    if (len < 0 || pos + RECORD_SIZE + len > ch.size()) break;
+                    ByteBuffer payload = ByteBuffer.allocate(len);
+                    ch.read(payload, pos + RECORD_SIZE);
+                    crc.reset();
+                    crc.update(rec.array(), 0, 48);
+                    crc.update(payload.array(), 0, len);
+                    if ((int) crc.getValue() != rec.getInt(48)) break;
+                    if (rec.getLong(8) <= prev) break; // sequence numbers only increase
+
+                    Record r = new Record();
+                    r.op = rec.get(0);
+                    r.seq = rec.getLong(8);
+                    r.timestamp = rec.getLong(16);
+                    r.account = rec.getLong(24);
+                    r.counterparty = rec.getLong(32);
+                    r.amount = version == 1 ? Money.fromDouble(Double.longBitsToDouble(rec.getLong(40))) : rec.getLong(40);
+                    if (r.op == CREATE) {
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+                        r.owner = in.readUTF();
+                        r.pinHash = in.readUTF();
+                    } else if (r.op == BATCH) {
+                        r.legs = new long[len / 8];
+                        ByteBuffer.wrap(payload.array()).asLongBuffer().get(r.legs);
+                    }
+                    if (r.seq > afterSeq) { sink.accept(r); replayed++; }
+                    last = Math.max(last, r.seq);
+                    prev = r.seq;
+                    pos += RECORD_SIZE + len;
+                }
+                if (pos < ch.size()) ch.truncate(pos); // drop a torn tail
+                Journal j = new Journal(path, ch, pos, last);
+                j.records = replayed;
+                j.upgraded = version != VERSION;
+                return j;
+            } catch (IOException | RuntimeException e) {
+                ch.close();
+                throw e;
+            }
+        }
+
+        private static void writeHeader(FileChannel ch) throws IOException {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            h.flip();
+            ch.truncate(0);
+            ch.write(h, 0);
+            ch.force(true);
+        }
+
+        static byte[] encodeCreate(String owner, String pinHash) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeUTF(owner);
+                out.writeUTF(pinHash);
+                return bytes.toByteArray();
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+
+        static byte[] encodeLegs(java.util.List<AccountManager.Leg> legs) {
+            ByteBuffer b = ByteBuffer.allocate(24 * legs.size());
+            for (AccountManager.Leg l : legs) b.putLong(l.from).putLong(l.to).putLong(l.amount);
+            return b.array();
+        }
+
+        /** Buffers one record and returns the journal position that must be synced for it to be durable. */
+        synchronized long append(byte op, long timestamp, long account, long counterparty, long amount, byte[] payload) throws IOException {
+            int len = payload == null ? 0 : payload.length;
+            if (buffer.remaining() < RECORD_SIZE + len) flush();
+            ByteBuffer out = buffer.remaining() >= RECORD_SIZE + len ? buffer : ByteBuffer.allocate(RECORD_SIZE + len);
+            int start = out.position();
+            out.put(op).put((byte) 0).putShort((short) 0).putInt(len)
+               .putLong(++seq).putLong(timestamp).putLong(account).putLong(counterparty).putLong(amount);
+            ByteBuffer header = out.duplicate();
+            header.limit(start + 48).position(start);
+            crc.reset();
+            crc.update(header);
+            if (len > 0) crc.update(payload, 0, len);
+            out.putInt((int) crc.getValue()).putInt(0);
+            if (len > 0) out.put(payload);
+            if (out != buffer) { out.flip(); writeFully(out); }
+            position += RECORD_SIZE + len;
+            records++;
+            Metrics.JOURNAL_BYTES.add(RECORD_SIZE + len);
+            return position;
+        }
+
+        /** Group commit: returns once everything up to {@code lsn} has been forced to disk. */
+        void sync(long lsn) throws IOException {
+            if (lsn <= durable) return;
+            synchronized (syncLock) {
+                if (lsn <= durable) return;
+                long target;
+                synchronized (this) { flush(); target = flushed; }
+                channel.force(false);
+                Metrics.JOURNAL_FORCES.increment();
+                durable = target;
+            }
+        }
+
+        synchronized long lastSeq() { return seq; }
+
+        synchronized int records() { return records; }
+
+        synchronized long end() { return position; }
+
+        synchronized boolean upgraded() { return upgraded; }
+
+        /** Numbers new records after {@code last}, for when the records up to it were dropped already. */
+        synchronized void advanceTo(long last) { seq = Math.max(seq, last); }
+
+        /**
+         * Drops the records before {@code cut} (the first {@code cutRecords} records), once a
+         * snapshot covering them is safely on disk. The header and the records appended since are
+         * copied to {@code <journal>.tmp}, which is forced and then moved over the journal, so a
+         * crash at any point leaves either the old journal or the compacted one, never a mix.
+         */
+        void discardThrough(long cut, int cutRecords) throws IOException {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    if (cut == position) { reset(); return; }
+                    flush();
+                    Path tmp = Paths.get(path + ".tmp");
+                    FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    try {
+                        transferFully(0, HEADER_SIZE, out); // keeps the version the records are in
+                        transferFully(cut, position - cut, out);
+                        out.force(false);
+                        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException | RuntimeException e) {
+                        out.close();
+                        Files.deleteIfExists(tmp);
+                        throw e;
+                    }
+                    channel.close();
+                    channel = out;
+                    position = flushed = durable = HEADER_SIZE + position - cut;
+                    records -= cutRecords;
+                }
+            }
+        }
+
+        private void transferFully(long from, long count, FileChannel out) throws IOException {
+            for (long done = 0; done < count; ) {
+                long n = channel.transferTo(from + done, count - done, out);
+                if (n <= 0) throw new EOFException("Journal " + path + " ends before " + (from + count));
+                done += n;
+            }
+        }
+
+        /** Drops all records; called once a snapshot covering them is safely on disk. */
+        void reset() throws IOException {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    buffer.clear();
+                    writeHeader(channel);
+                    position = flushed = durable = HEADER_SIZE;
+                    records = 0;
+                    upgraded = false;
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (buffer.position() == 0) return;
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer b) throws IOException {
+            while (b.hasRemaining()) flushed += channel.write(b, flushed);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sync(position);
+            channel.close();
+        }
+    }
+}
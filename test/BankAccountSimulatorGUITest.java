@@ -0,0 +1,248 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repeatable checks of the paths normal use rarely reaches, such as recovery after a crash.
+ * Kept out of the application; compile and run it next to it:
+ *   javac -d out BankAccountSimulatorGUI.java test/BankAccountSimulatorGUITest.java
+ *   java -cp out BankAccountSimulatorGUITest
+ * Each check runs in a temporary directory of its own; the exit status is 1 if any fails.
+ */
+public class BankAccountSimulatorGUITest {
+    interface Check { void run(Path dir) throws Exception; }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("journal: a torn tail is truncated", BankAccountSimulatorGUITest::tornJournal);
+        checks.put("journal: discardThrough keeps the newer records", BankAccountSimulatorGUITest::compaction);
+        checks.put("archive: segments newer than the snapshot are deleted", BankAccountSimulatorGUITest::orphanSegments);
+        checks.put("legacy: bank_data.ser is migrated", BankAccountSimulatorGUITest::legacyMigration);
+        checks.put("legacy: transfer legs stamped apart audit clean", BankAccountSimulatorGUITest::legacySkewedLegs);
+        int failed = 0;
+        for (Map.Entry<String, Check> c : checks.entrySet()) {
+            Path dir = Files.createTempDirectory("bank-test");
+            try {
+                c.getValue().run(dir);
+                System.out.println("ok    " + c.getKey());
+            } catch (Exception | AssertionError e) {
+                failed++;
+                System.out.println("FAIL  " + c.getKey() + ": " + e);
+            } finally {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) { for (Path f : files) Files.deleteIfExists(f); }
+                Files.deleteIfExists(dir);
+            }
+        }
+        System.out.println(failed == 0 ? "OK" : failed + " FAILED");
+        if (failed > 0) System.exit(1);
+    }
+
+    static void expect(boolean ok, String problem) {
+        if (!ok) throw new AssertionError(problem);
+    }
+
+    static List<Long> replayedSeqs(Path journal) throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        BankAccountSimulatorGUI.Journal.open(journal, 0, r -> seqs.add(r.seq)).close();
+        return seqs;
+    }
+
+    // ----------------- Journal -----------------
+
+    /** Half a record at the end, as left by a crash mid-write, is dropped and appending resumes there. */
+    static void tornJournal(Path dir) throws IOException {
+        Path path = dir.resolve("bank.journal");
+        try (BankAccountSimulatorGUI.Journal j = BankAccountSimulatorGUI.Journal.open(path, 0, r -> {})) {
+            for (int i = 1; i <= 3; i++) j.append(BankAccountSimulatorGUI.Journal.DEPOSIT, i, 1000000000L, 0, 100 * i, null);
+        }
+        long whole = Files.size(path);
+        int record = BankAccountSimulatorGUI.Journal.RECORD_SIZE;
+        byte[] last = Arrays.copyOfRange(Files.readAllBytes(path), (int) whole - record, (int) whole);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(last, 0, record / 2));
+        }
+        try (BankAccountSimulatorGUI.Journal j = BankAccountSimulatorGUI.Journal.open(path, 0, r -> {})) {
+            expect(Files.size(path) == whole, "torn tail kept: " + Files.size(path) + " bytes, expected " + whole);
+            j.append(BankAccountSimulatorGUI.Journal.DEPOSIT, 4, 1000000000L, 0, 400, null);
+        }
+        List<Long> seqs = replayedSeqs(path);
+        expect(seqs.equals(Arrays.asList(1L, 2L, 3L, 4L)), "replayed " + seqs);
+    }
+
+    /**
+     * Dropping the first records leaves the rest, and appends after it go to the compacted file.
+     * A compaction that crashed before its move leaves a .tmp beside the intact journal.
+     */
+    static void compaction(Path dir) throws IOException {
+        Path path = dir.resolve("bank.journal"), tmp = dir.resolve("bank.journal.tmp");
+        try (BankAccountSimulatorGUI.Journal j = BankAccountSimulatorGUI.Journal.open(path, 0, r -> {})) {
+            for (int i = 1; i <= 3; i++) j.append(BankAccountSimulatorGUI.Journal.DEPOSIT, i, 1000000000L, 0, i, null);
+            long cut = j.end();
+            for (int i = 4; i <= 5; i++) j.append(BankAccountSimulatorGUI.Journal.DEPOSIT, i, 1000000000L, 0, i, null);
+            j.sync(j.end());
+            j.discardThrough(cut, 3);
+            expect(j.records() == 2, j.records() + " records after compaction, expected 2");
+            expect(!Files.exists(tmp), "compaction left its .tmp behind");
+            j.append(BankAccountSimulatorGUI.Journal.DEPOSIT, 6, 1000000000L, 0, 6, null);
+        }
+        long size = Files.size(path);
+        expect(size == BankAccountSimulatorGUI.Journal.HEADER_SIZE + 3 * BankAccountSimulatorGUI.Journal.RECORD_SIZE, "compacted journal has " + size + " bytes");
+        List<Long> seqs = replayedSeqs(path);
+        expect(seqs.equals(Arrays.asList(4L, 5L, 6L)), "replayed " + seqs + " after compaction");
+
+        Files.write(tmp, new byte[BankAccountSimulatorGUI.Journal.RECORD_SIZE / 2]);
+        seqs = replayedSeqs(path);
+        expect(seqs.equals(Arrays.asList(4L, 5L, 6L)) && Files.size(path) == size, "replayed " + seqs + " beside an unfinished compaction");
+        expect(!Files.exists(tmp), "the unfinished compaction was not removed");
+    }
+
+    // ----------------- History archive -----------------
+
+    /** Segments the shard's snapshot does not record, finished or not, are deleted on load. */
+    static void orphanSegments(Path dir) throws Exception {
+        String file = dir.resolve("bank.bin").toString();
+        BankAccountSimulatorGUI.AccountManager m = BankAccountSimulatorGUI.AccountManager.loadFromFile(file);
+        long acc;
+        try {
+            acc = m.createAccount("Archive Check", "1234", 5000).getAccountNumber();
+            m.saveToFile(file);
+        } finally { m.close(); }
+        String shardFile = m.shardOf(acc).file(file);
+        Path orphan = BankAccountSimulatorGUI.HistoryArchive.pathFor(shardFile, 1);
+        Path unfinished = Paths.get(BankAccountSimulatorGUI.HistoryArchive.pathFor(shardFile, 2) + ".tmp");
+        Files.write(orphan, new byte[BankAccountSimulatorGUI.HistoryArchive.FOOTER_SIZE]);
+        Files.write(unfinished, new byte[BankAccountSimulatorGUI.HistoryArchive.FOOTER_SIZE]);
+        m = BankAccountSimulatorGUI.AccountManager.loadFromFile(file);
+        try {
+            expect(!Files.exists(orphan), orphan.getFileName() + " was kept");
+            expect(!Files.exists(unfinished), unfinished.getFileName() + " was kept");
+            BankAccountSimulatorGUI.BankAccount a = m.getAccount(acc);
+            expect(a != null && a.getBalance() == 5000 && a.getTransactions().size() == 1, "account " + acc + " did not survive the reload");
+        } finally { m.close(); }
+    }
+
+    // ----------------- Migration -----------------
+
+    /**
+     * A bank_data.ser becomes a binary snapshot and is renamed; balances and histories come across
+     * and the result audits clean. The look-alike classes are written directly, so this covers the
+     * upgrade rather than the mapping of the old class names.
+     */
+    static void legacyMigration(Path dir) throws Exception {
+        long t = System.currentTimeMillis() - 86_400_000L;
+        BankAccountSimulatorGUI.LegacySnapshot.Manager old = legacyBank(
+                legacyAccount(1000000000L, "Ada", 100.10,
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.DEPOSIT, 150.10, "Initial deposit", t),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_OUT, 50.00, "Transfer to 1000000001", t + 1000)),
+                legacyAccount(1000000001L, "Bob", 70.00,
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.DEPOSIT, 20.00, "Initial deposit", t),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_IN, 50.00, "Transfer from 1000000000", t + 1000)));
+        BankAccountSimulatorGUI.AccountManager m = migrate(dir, old);
+        try {
+            expect(m.getAccount(1000000000L).getBalance() == 10010 && m.getAccount(1000000001L).getBalance() == 7000, "balances changed");
+            expect(m.getAccount(1000000001L).getTransactions().get(1).getType() == BankAccountSimulatorGUI.Transaction.Type.TRANSFER_IN, "history changed");
+            expect(m.getAccount(1000000000L).verifyPin("1234"), "PIN no longer verifies");
+            BankAccountSimulatorGUI.Audit.Report r = m.audit();
+            expect(r.clean(), "audit failed: " + r);
+        } finally { m.close(); }
+        expect(Files.exists(dir.resolve("bank_data.ser.migrated")) && !Files.exists(dir.resolve("bank_data.ser")), "bank_data.ser was not renamed");
+        m = BankAccountSimulatorGUI.AccountManager.loadFromFile(dir.resolve("bank_data.bin").toString());
+        try {
+            expect(m.getAccount(1000000000L).getTransactions().size() == 2 && m.audit().clean(), "migrated bank did not reload");
+        } finally { m.close(); }
+    }
+
+    /** Old transfers stamped each leg with its own clock read; the migrated legs must still pair up. */
+    static void legacySkewedLegs(Path dir) throws Exception {
+        long t = System.currentTimeMillis() - 86_400_000L;
+        BankAccountSimulatorGUI.LegacySnapshot.Manager old = legacyBank(
+                legacyAccount(1000000000L, "Ada", 350.00,
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.DEPOSIT, 500.00, "Initial deposit", t),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_OUT, 100.00, "Transfer to 1000000001", t + 1000),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_OUT, 100.00, "Transfer to 1000000001", t + 2000),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_IN, 50.00, "Transfer from 1000000001", t + 3002)),
+                legacyAccount(1000000001L, "Bob", 160.00,
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.DEPOSIT, 10.00, "Initial deposit", t),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_IN, 100.00, "Transfer from 1000000000", t + 1003),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_IN, 100.00, "Transfer from 1000000000", t + 2001),
+                        legacyTxn(BankAccountSimulatorGUI.Transaction.Type.TRANSFER_OUT, 50.00, "Transfer to 1000000000", t + 3000)));
+        BankAccountSimulatorGUI.AccountManager m = migrate(dir, old);
+        try {
+            BankAccountSimulatorGUI.Audit.Report r = m.audit();
+            expect(r.clean() && r.legs == 6, "audit failed: " + r);
+            expect(m.getAccount(1000000001L).getTransactions().get(2).getTimestamp() == t + 2000, "TRANSFER_IN not given its TRANSFER_OUT's time");
+        } finally { m.close(); }
+    }
+
+    /** Writes {@code old} as dir/bank_data.ser and opens dir/bank_data.bin from it. */
+    static BankAccountSimulatorGUI.AccountManager migrate(Path dir, BankAccountSimulatorGUI.LegacySnapshot.Manager old) throws Exception {
+        Path legacy = dir.resolve("bank_data.ser");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(legacy)))) {
+            out.writeObject(old);
+        }
+        return BankAccountSimulatorGUI.AccountManager.open(dir.resolve("bank_data.bin").toString(), legacy.toString());
+    }
+
+    static BankAccountSimulatorGUI.LegacySnapshot.Manager legacyBank(BankAccountSimulatorGUI.LegacySnapshot.Account... accounts) throws ReflectiveOperationException {
+        BankAccountSimulatorGUI.LegacySnapshot.Manager m = new BankAccountSimulatorGUI.LegacySnapshot.Manager();
+        Map<Long, BankAccountSimulatorGUI.LegacySnapshot.Account> byNumber = new HashMap<>();
+        long next = 0;
+        for (BankAccountSimulatorGUI.LegacySnapshot.Account a : accounts) {
+            long number = (Long) get(a, "accountNumber");
+            byNumber.put(number, a);
+            next = Math.max(next, number + 1);
+        }
+        set(m, "accounts", byNumber);
+        set(m, "nextAccount", next);
+        return m;
+    }
+
+    static BankAccountSimulatorGUI.LegacySnapshot.Account legacyAccount(long number, String owner, double balance,
+            BankAccountSimulatorGUI.LegacySnapshot.Txn... history) throws ReflectiveOperationException {
+        BankAccountSimulatorGUI.LegacySnapshot.Account a = new BankAccountSimulatorGUI.LegacySnapshot.Account();
+        set(a, "accountNumber", number);
+        set(a, "owner", owner);
+        set(a, "balance", balance);
+        set(a, "pinHash", BankAccountSimulatorGUI.PinHash.create("1234").encoded());
+        set(a, "transactions", new ArrayList<>(Arrays.asList(history)));
+        return a;
+    }
+
+    static BankAccountSimulatorGUI.LegacySnapshot.Txn legacyTxn(BankAccountSimulatorGUI.Transaction.Type type, double amount, String note, long timestamp)
+            throws ReflectiveOperationException {
+        BankAccountSimulatorGUI.LegacySnapshot.Txn t = new BankAccountSimulatorGUI.LegacySnapshot.Txn();
+        set(t, "type", type);
+        set(t, "amount", amount);
+        set(t, "note", note);
+        set(t, "timestamp", new Date(timestamp));
+        return t;
+    }
+
+    // the look-alike classes keep their serialized fields private, as the originals did
+    static void set(Object o, String field, Object value) throws ReflectiveOperationException {
+        Field f = o.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+
+    static Object get(Object o, String field) throws ReflectiveOperationException {
+        Field f = o.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        return f.get(o);
+    }
+}